@@ -22,6 +22,7 @@ import time
 import os
 import shutil
 import sys
+import struct
 import cPickle
 import datetime
 import constants
@@ -269,6 +270,72 @@ rePKOrd = re.compile(r'PK(.*?)\[')
 reOneGroup = re.compile('group=(.*?) totalHits=(.*?) groupRelevance=(.*?)$', re.DOTALL)
 reHeap = re.compile('HEAP: ([0-9]+)$')
 
+# Must match perf/ResultsLog.java:
+RESULTS_LOG_MAGIC = 0x52534c32
+
+class ResultsLogReader:
+
+  '''
+  Reads the binary results log written by perf/ResultsLog.java,
+  returning the same lines the old text log had via readline().
+  '''
+
+  def __init__(self, fileName):
+    self.f = open(fileName, 'rb')
+    magic = struct.unpack('>i', self.f.read(4))[0]
+    if magic != RESULTS_LOG_MAGIC:
+      raise RuntimeError('%s is not a results log (magic=0x%x)' % (fileName, magic))
+    # key -> (TASK line, results lines)
+    self.tasks = {}
+    self.pending = []
+
+  def readline(self):
+    while len(self.pending) == 0:
+      if not self.nextRecord():
+        return ''
+    return self.pending.pop()
+
+  def nextRecord(self):
+    type = self.f.read(1)
+    if type == '':
+      return False
+    if type == 'T':
+      key, length = struct.unpack('>ii', self.f.read(8))
+      text = self.f.read(length).decode('utf-8')
+      idx = text.find('\n')
+      self.tasks[key] = (text[:idx+1], text[idx+1:].splitlines(True))
+    elif type == 'R':
+      key, runTimeNanos, threadID, cpuTimeNanos, allocatedBytes = struct.unpack('>iqiqq', self.f.read(32))
+      # ResultsLog only reuses a key for repeats whose checksum
+      # matched that key's results; otherwise each result has
+      # its own 'T' record:
+      taskLine, resultLines = self.tasks[key]
+      # cpu (nsec) and alloc (bytes) are -1 if not measured:
+      lines = ['\n', taskLine, '  %s msec\n' % (runTimeNanos/1000000.0), '  thread %d cpu %d alloc %d\n' % (threadID, cpuTimeNanos, allocatedBytes)] + resultLines
+      lines.reverse()
+      self.pending = lines
+    elif type == 'H':
+      heap = struct.unpack('>q', self.f.read(8))[0]
+      self.pending = ['HEAP: %d\n' % heap, '\n']
+    else:
+      raise RuntimeError('unknown results log record type %s' % repr(type))
+    return True
+
+  def close(self):
+    self.f.close()
+
+def parseThreadLine(task, line):
+  # eg "thread 3 cpu 1234567 alloc 45678":
+  tup = line.strip().split()
+  task.threadID = int(tup[1])
+  task.cpuMsec = None
+  task.allocBytes = None
+  if len(tup) >= 6:
+    if int(tup[3]) != -1:
+      task.cpuMsec = int(tup[3])/1000000.0
+    if int(tup[5]) != -1:
+      task.allocBytes = int(tup[5])
+
 def parseResults(resultsFiles):
   taskIters = []
   heaps = []
@@ -282,7 +349,7 @@ def parseResults(resultsFiles):
       raise RuntimeError('%s.stdout is %d bytes; leftover System.out.println?' % (resultsFile, os.path.getsize(resultsFile + '.stdout')))
     
     # print 'parse %s' % resultsFile
-    f = open(resultsFile, 'rb')
+    f = ResultsLogReader(resultsFile)
     while True:
       line = f.readline()
       if line == '':
@@ -296,7 +363,7 @@ def parseResults(resultsFiles):
       if line.startswith('TASK: cat='):
         task = SearchTask()
         task.msec = float(f.readline().strip().split()[0])
-        task.threadID = int(f.readline().strip().split()[1])
+        parseThreadLine(task, f.readline())
         task.facets = None
 
         m = reSearchTask.match(line[6:])
@@ -424,7 +491,7 @@ def parseResults(resultsFiles):
       elif line.startswith('TASK: respell'):
         task = RespellTask()
         task.msec = float(f.readline().strip().split()[0])
-        task.threadID = int(f.readline().strip().split()[1])
+        parseThreadLine(task, f.readline())
         task.term = line[14:]
 
         task.hits = []
@@ -446,7 +513,7 @@ def parseResults(resultsFiles):
         task = PKLookupTask()
         task.pkOrd = rePKOrd.search(line).group(1)
         task.msec = float(f.readline().strip().split()[0])
-        task.threadID = int(f.readline().strip().split()[1])
+        parseThreadLine(task, f.readline())
       else:
         task = None
         if line.find('\tat') != -1:
@@ -589,6 +656,38 @@ def agg(iters, cat, name):
   return accumMS, totHitCount
 
 
+def aggCPU(iters, cat):
+  '''
+  Mean CPU msec and allocated bytes per task for this category, over
+  all JVMs, skipping warmup runs; None for either if not measured.
+  '''
+  cpuMS = []
+  allocBytes = []
+  for tasksByCat in iters:
+    if cat not in tasksByCat:
+      continue
+    for task, results in tasksByCat[cat][1].items():
+      for result in results[WARM_SKIP:]:
+        if result.cpuMsec is not None:
+          cpuMS.append(result.cpuMsec)
+        if result.allocBytes is not None:
+          allocBytes.append(result.allocBytes)
+
+  if len(cpuMS) == 0:
+    avgCPUMS = None
+  else:
+    avgCPUMS = sum(cpuMS)/len(cpuMS)
+  if len(allocBytes) == 0:
+    avgAllocBytes = None
+  else:
+    avgAllocBytes = float(sum(allocBytes))/len(allocBytes)
+  return avgCPUMS, avgAllocBytes
+
+def pctChange(base, cmp):
+  if base is None or cmp is None or base == 0:
+    return ''
+  return '%.1f%%' % (100.0*(cmp-base)/base)
+
 def stats(l):
   sum = 0
   sumSQ = 0
@@ -779,6 +878,8 @@ class RunAlgs:
       cp.append('%s/build/contrib/analyzers/common/classes/java' % path)
       cp.append('%s/build/contrib/spellchecker/classes/java' % path)
 
+    cp.append(constants.HDR_HISTOGRAM_PATH)
+
     # so perf.* is found:
     cp.append(constants.BENCH_BASE_DIR)
 
@@ -917,6 +1018,8 @@ class RunAlgs:
 
     resultsByCatCmp = {}
 
+    cpuLines = []
+
     for cat in cats:
 
       if type(cat) is types.TupleType:
@@ -954,6 +1057,21 @@ class RunAlgs:
 
       resultsByCatCmp[desc] = (minQPSCmp, maxQPSCmp, avgQPSCmp, qpsStdDevCmp)
 
+      # Per-task CPU time and allocation move even when QPS
+      # differences are in the noise:
+      baseCPUMS, baseAllocBytes = aggCPU(baseResults, cat)
+      cmpCPUMS, cmpAllocBytes = aggCPU(cmpResults, cat)
+      if baseCPUMS is not None or baseAllocBytes is not None or cmpCPUMS is not None or cmpAllocBytes is not None:
+        def fmt(v, scale):
+          if v is None:
+            return 'n/a'
+          return '%.3f' % (v/scale)
+        cpuLines.append((desc,
+                         '%24s%12s%12s%10s%14s%14s%10s\n' %
+                         (desc,
+                          fmt(baseCPUMS, 1.0), fmt(cmpCPUMS, 1.0), pctChange(baseCPUMS, cmpCPUMS),
+                          fmt(baseAllocBytes, 1024.0), fmt(cmpAllocBytes, 1024.0), pctChange(baseAllocBytes, cmpAllocBytes))))
+
       if VERBOSE:
         if type(cat) is types.TupleType:
           print 'cat %s' % cat[0]
@@ -1075,6 +1193,14 @@ class RunAlgs:
 
     if html:
       w('</table>')
+    elif not jira and len(cpuLines) > 0:
+      cpuLines.sort()
+      w('\n')
+      w('%24s%12s%12s%10s%14s%14s%10s\n' %
+        ('Task', 'CPU ms %s' % baseDesc, 'CPU ms %s' % cmpDesc, 'diff',
+         'Alloc KB %s' % baseDesc, 'Alloc KB %s' % cmpDesc, 'diff'))
+      for ign, s in cpuLines:
+        w(s)
 
     for w in warnings:
       print 'WARNING: %s' % w
@@ -168,6 +168,19 @@ class Index(object):
     name.append('nd%gM' % (self.numDocs/1000000.0))
     return '.'.join(name)
 
+def javacMajorVersion():
+  # eg "javac 1.8.0_292" or "javac 17.0.2":
+  tup = os.popen('javac -version 2>&1').read().split()
+  if len(tup) < 2:
+    return 0
+  parts = tup[1].split('.')
+  try:
+    if parts[0] == '1' and len(parts) > 1:
+      return int(parts[1])
+    return int(parts[0].split('-')[0])
+  except ValueError:
+    return 0
+
 class Competitor(object):
 
   doSort = False
@@ -209,6 +222,13 @@ class Competitor(object):
         files.append('%s/perf/%s' % (constants.BENCH_BASE_DIR, f))
     benchUtil.run('javac -classpath "%s" %s >> compile.log 2>&1' % (cp, ' '.join(files)), 'compile.log')
 
+    # Custom JFR events need Java 11+; without them perf.JFREvents is a no-op:
+    if javacMajorVersion() >= 11:
+      jfrSource = '%s/perf/jfr/JFREventsImpl.java' % constants.BENCH_BASE_DIR
+      benchUtil.run('javac -classpath "%s" -d "%s" "%s" >> compile.log 2>&1' % (cp, constants.BENCH_BASE_DIR, jfrSource), 'compile.log')
+    else:
+      print '    NOTE: skipping JFR events (needs Java 11+)'
+
 class Competition(object):
 
   def __init__(self, cold=False,
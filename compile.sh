@@ -15,8 +15,20 @@ fi
 LUCENE_HOME=/l/trunk/lucene
 #LUCENE_HOME=/localhome/lucene4x/lucene
 
-CLASSPATH=$LUCENE_HOME/build/core/classes/java,$LUCENE_HOME/build/misc/classes/java,$LUCENE_HOME/build/facet/classes/java,$LUCENE_HOME/build/facet/classes/java,$LUCENE_HOME/build/highlighter/classes/java,$LUCENE_HOME/build/test-framework/classes/java,$LUCENE_HOME/build/queryparser/classes/java,$LUCENE_HOME/build/suggest/classes/java,$LUCENE_HOME/build/analysis/common/classes/java,$LUCENE_HOME/build/grouping/classes/java,$LUCENE_HOME/build/sandbox/classes/java
+# ... and $HDR_HISTOGRAM to HdrHistogram's jar or src dir:
+HDR_HISTOGRAM=/l/HdrHistogram/src
+
+CLASSPATH=$LUCENE_HOME/build/core/classes/java,$LUCENE_HOME/build/misc/classes/java,$LUCENE_HOME/build/facet/classes/java,$LUCENE_HOME/build/facet/classes/java,$LUCENE_HOME/build/highlighter/classes/java,$LUCENE_HOME/build/test-framework/classes/java,$LUCENE_HOME/build/queryparser/classes/java,$LUCENE_HOME/build/suggest/classes/java,$LUCENE_HOME/build/analysis/common/classes/java,$LUCENE_HOME/build/grouping/classes/java,$LUCENE_HOME/build/sandbox/classes/java,$HDR_HISTOGRAM
 
 CLASSPATH=`echo $CLASSPATH | tr "," "$CLASSPATH_SEP"`
 
-$JAVA_HOME/bin/javac -Xlint -Xlint:deprecation -target 1.6 -source 1.6 -cp $CLASSPATH perf/Args.java perf/IndexThreads.java perf/OpenCloseIndexWriter.java perf/Task.java perf/CreateQueries.java perf/LineFileDocs.java perf/PKLookupPerfTest.java perf/RandomFilter.java perf/SearchPerfTest.java perf/TaskParser.java perf/Indexer.java perf/LocalTaskSource.java perf/PKLookupTask.java perf/RemoteTaskSource.java perf/SearchTask.java perf/TaskSource.java perf/IndexState.java perf/NRTPerfTest.java perf/RespellTask.java perf/ShowFields.java perf/TaskThreads.java perf/KeepNoCommitsDeletionPolicy.java perf/FacetGroup.java perf/OpenDirectory.java
+$JAVA_HOME/bin/javac -Xlint -Xlint:deprecation -target 1.6 -source 1.6 -cp $CLASSPATH perf/Args.java perf/IndexThreads.java perf/OpenCloseIndexWriter.java perf/Task.java perf/CreateQueries.java perf/LineFileDocs.java perf/PKLookupPerfTest.java perf/RandomFilter.java perf/SearchPerfTest.java perf/TaskParser.java perf/Indexer.java perf/LocalTaskSource.java perf/PKLookupTask.java perf/RemoteTaskSource.java perf/SearchTask.java perf/TaskSource.java perf/IndexState.java perf/NRTPerfTest.java perf/RespellTask.java perf/ShowFields.java perf/TaskThreads.java perf/KeepNoCommitsDeletionPolicy.java perf/FacetGroup.java perf/OpenDirectory.java perf/SendTasks.java perf/HistogramUtil.java perf/TaskLatencies.java perf/ReplayTaskSource.java perf/ConcurrentSearcher.java perf/ResultsLog.java perf/SteadyStateTaskSource.java perf/JFREvents.java perf/HiccupRecorder.java perf/ConvertLineDocs.java perf/LineDateParser.java perf/IndexPipeline.java perf/RatePacer.java perf/TimelineInfoStream.java
+
+# Optional: custom JFR events, which need Java 11+ (see perf/JFREvents.java).
+# javac -version prints e.g. "javac 1.8.0_292" or "javac 17.0.2":
+JAVAC_MAJOR=`$JAVA_HOME/bin/javac -version 2>&1 | awk '{print $2}' | awk -F. '{if ($1 == 1) print $2; else print $1}' | sed 's/[^0-9].*//'`
+if [ -n "$JAVAC_MAJOR" ] && [ "$JAVAC_MAJOR" -ge 11 ]; then
+  $JAVA_HOME/bin/javac -cp $CLASSPATH$CLASSPATH_SEP. -d . perf/jfr/JFREventsImpl.java
+else
+  echo "NOTE: skipping JFR events (needs Java 11+)"
+fi
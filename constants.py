@@ -81,6 +81,10 @@ TESTS_LINE_FILE = None
 
 ANT_EXE = 'ant'
 
+# HdrHistogram (http://giltene.github.com/HdrHistogram), used for
+# latency percentiles; may be its jar or its src directory:
+HDR_HISTOGRAM_PATH = '%s/HdrHistogram/src' % BASE_DIR
+
 # import again in case you want to override any of the vars set above
 from localconstants import *
 
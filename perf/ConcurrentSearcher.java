@@ -0,0 +1,117 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+
+// IndexSearcher that searches its segments concurrently on a
+// shared executor, grouping small segments together so each
+// slice is worth handing to another thread.  Large segments
+// (more than maxDocsPerSlice docs) get a slice of their own;
+// the rest are packed into slices of up to maxDocsPerSlice
+// docs and maxSegmentsPerSlice segments.
+class ConcurrentSearcher extends IndexSearcher {
+
+  // IndexSearcher's constructor calls slices(), before our
+  // own fields would be set, so slice sizing has to be
+  // static; call setSliceSizes before creating searchers:
+  private static volatile int maxDocsPerSlice = 250000;
+  private static volatile int maxSegmentsPerSlice = 5;
+
+  public ConcurrentSearcher(IndexReader reader, ExecutorService executor) {
+    super(reader, executor);
+  }
+
+  public static void setSliceSizes(int maxDocs, int maxSegments) {
+    if (maxDocs < 1) {
+      throw new IllegalArgumentException("maxDocsPerSlice must be >= 1 (got: " + maxDocs + ")");
+    }
+    if (maxSegments < 1) {
+      throw new IllegalArgumentException("maxSegmentsPerSlice must be >= 1 (got: " + maxSegments + ")");
+    }
+    maxDocsPerSlice = maxDocs;
+    maxSegmentsPerSlice = maxSegments;
+  }
+
+  // Daemon threads, so a forgotten executor doesn't keep
+  // the JVM alive:
+  public static ExecutorService newExecutor(int numThreads) {
+    final AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          final Thread t = new Thread(r, "SearchSlice-" + count.getAndIncrement());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  }
+
+  @Override
+  protected LeafSlice[] slices(List<AtomicReaderContext> leaves) {
+    final int maxDocs = maxDocsPerSlice;
+    final int maxSegments = maxSegmentsPerSlice;
+
+    // Biggest segments first, so the packed slices end up
+    // roughly even:
+    final List<AtomicReaderContext> sorted = new ArrayList<AtomicReaderContext>(leaves);
+    Collections.sort(sorted, new Comparator<AtomicReaderContext>() {
+        @Override
+        public int compare(AtomicReaderContext a, AtomicReaderContext b) {
+          return b.reader().maxDoc() - a.reader().maxDoc();
+        }
+      });
+
+    final List<LeafSlice> slices = new ArrayList<LeafSlice>();
+    List<AtomicReaderContext> current = null;
+    long docCount = 0;
+    for(AtomicReaderContext ctx : sorted) {
+      final int maxDoc = ctx.reader().maxDoc();
+      if (maxDoc > maxDocs) {
+        slices.add(new LeafSlice(ctx));
+        continue;
+      }
+      if (current == null) {
+        current = new ArrayList<AtomicReaderContext>();
+      }
+      current.add(ctx);
+      docCount += maxDoc;
+      if (docCount > maxDocs || current.size() >= maxSegments) {
+        slices.add(new LeafSlice(current.toArray(new AtomicReaderContext[current.size()])));
+        current = null;
+        docCount = 0;
+      }
+    }
+    if (current != null) {
+      slices.add(new LeafSlice(current.toArray(new AtomicReaderContext[current.size()])));
+    }
+
+    return slices.toArray(new LeafSlice[slices.size()]);
+  }
+}
@@ -0,0 +1,153 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+// One-time conversion of a text line docs file to the
+// binary format LineFileDocs also reads (see
+// LineFileDocs.BINARY_MAGIC), so repeated indexing runs
+// don't re-split and re-parse dates for every doc.  Docs
+// keep their order, so IDs are the same as indexing the
+// text file.  Dates are parsed in this JVM's default time
+// zone, same as LineFileDocs would, and the zone is recorded
+// so LineFileDocs refuses to read the file in another one.
+//
+// With -verify, each parsed date is also checked against
+// SimpleDateFormat, which is what reading the text file
+// amounts to.
+//
+// Usage: java perf.ConvertLineDocs in.txt out.bin [-verify]
+public class ConvertLineDocs {
+
+  private final static char SEP = '\t';
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2 && (args.length != 3 || !args[2].equals("-verify"))) {
+      System.out.println("Usage: java perf.ConvertLineDocs <lineDocs.txt> <lineDocs.bin> [-verify]");
+      System.exit(1);
+    }
+    final boolean verify = args.length == 3;
+    final long t0 = System.currentTimeMillis();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), "UTF-8"), 1 << 16);
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 16));
+
+    final LineDateParser dateParser = new LineDateParser();
+    final SimpleDateFormat verifyParser = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
+    final Calendar verifyCal = Calendar.getInstance();
+
+    final ByteArrayOutputStream docBytes = new ByteArrayOutputStream();
+    final DataOutputStream docOut = new DataOutputStream(docBytes);
+
+    long docCount = 0;
+    try {
+      String line = reader.readLine();
+      String[] extraFields = new String[0];
+      if (line != null && line.startsWith("FIELDS_HEADER_INDICATOR")) {
+        if (!line.startsWith("FIELDS_HEADER_INDICATOR###	doctitle	docdate	body") &&
+            !line.startsWith("FIELDS_HEADER_INDICATOR###	title	timestamp	text")) {
+          throw new IllegalArgumentException("unrecognized header in line docs file: " + line.trim());
+        }
+        final String[] fields = line.split("\t");
+        if (fields.length > 4) {
+          extraFields = Arrays.copyOfRange(fields, 4, fields.length);
+        }
+        line = reader.readLine();
+      }
+
+      out.writeInt(LineFileDocs.BINARY_MAGIC);
+      out.writeInt(LineFileDocs.BINARY_VERSION);
+      out.writeUTF(TimeZone.getDefault().getID());
+      out.writeInt(extraFields.length);
+      for(String field : extraFields) {
+        out.writeUTF(field);
+      }
+
+      for(;line != null;line = reader.readLine()) {
+        final int spot = line.indexOf(SEP);
+        final int spot2 = spot == -1 ? -1 : line.indexOf(SEP, 1 + spot);
+        if (spot2 == -1) {
+          throw new RuntimeException("line " + (docCount+1) + ": [" + line + "] is in an invalid format !");
+        }
+        int spot3 = line.indexOf(SEP, 1 + spot2);
+        if (spot3 == -1) {
+          spot3 = line.length();
+        }
+
+        final String dateString = line.substring(1+spot, spot2);
+        if (!dateParser.parse(dateString)) {
+          throw new RuntimeException("line " + (docCount+1) + ": failed to parse date \"" + dateString + "\"");
+        }
+        if (verify) {
+          final Date date = verifyParser.parse(dateString, new ParsePosition(0));
+          verifyCal.setTime(date);
+          final int secOfDay = verifyCal.get(Calendar.HOUR_OF_DAY)*3600 + verifyCal.get(Calendar.MINUTE)*60 + verifyCal.get(Calendar.SECOND);
+          if (date.getTime() != dateParser.msec || secOfDay != dateParser.secOfDay) {
+            throw new RuntimeException("line " + (docCount+1) + ": date \"" + dateString + "\" parsed to msec=" + dateParser.msec + " secOfDay=" + dateParser.secOfDay +
+                                       " but SimpleDateFormat gives msec=" + date.getTime() + " secOfDay=" + secOfDay);
+          }
+        }
+
+        docBytes.reset();
+        writeString(docOut, line.substring(0, spot));
+        writeString(docOut, dateString);
+        docOut.writeLong(dateParser.msec);
+        docOut.writeInt(dateParser.secOfDay);
+        writeString(docOut, line.substring(1+spot2, spot3));
+        if (extraFields.length > 0) {
+          final String[] extraValues = line.substring(Math.min(spot3+1, line.length())).split("\t");
+          for(int i=0;i<extraFields.length;i++) {
+            writeString(docOut, i < extraValues.length ? extraValues[i] : "");
+          }
+        }
+        docOut.flush();
+
+        out.writeInt(docBytes.size());
+        docBytes.writeTo(out);
+        docCount++;
+        if (docCount % 1000000 == 0) {
+          System.out.println(docCount + " docs... (" + (System.currentTimeMillis() - t0) + " msec)");
+        }
+      }
+    } finally {
+      reader.close();
+      out.close();
+    }
+    System.out.println("Converted " + docCount + " docs in " + (System.currentTimeMillis() - t0) + " msec");
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    final byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
@@ -0,0 +1,152 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+// jHiccup-style platform stall recorder: a thread that
+// sleeps for resolutionMS over and over, and records how
+// much longer than that each sleep took.  Any such hiccup
+// (GC pause, safepoint, OS scheduling, swapping, ...) would
+// have stalled a search thread just the same, so comparing
+// hiccups against task latency over the same interval
+// separates "Lucene was slow" from "the JVM/OS paused
+// everything".
+//
+// Every intervalSec, one line is appended to the log with
+// that interval's hiccup and task latency percentiles (in
+// msec); tasks are recorded by the search threads via
+// recordTask.  Like jHiccup, a long hiccup is also counted
+// as the sleeps it would have covered (coordinated omission
+// correction), so hiccup counts include those.
+//
+// Needs HdrHistogram 2.x (for Recorder).
+class HiccupRecorder extends Thread {
+
+  private final long resolutionNS;
+  private final long intervalNS;
+  private final PrintStream log;
+
+  // Whole run; only touched by this thread until finish:
+  private final Histogram allHiccups = HistogramUtil.newHistogram();
+
+  // Current interval; only touched by this thread:
+  private final Histogram hiccups = HistogramUtil.newHistogram();
+
+  // Search threads record here without locking; this thread
+  // swaps out the interval histogram every interval:
+  private final Recorder taskRecorder = new Recorder(HistogramUtil.MAX_LATENCY_US, 3);
+  private Histogram taskLatencies;
+
+  private volatile boolean stop;
+  private long startNS;
+
+  public HiccupRecorder(double resolutionMS, double intervalSec, String logPath) throws IOException {
+    if (resolutionMS <= 0.0) {
+      throw new IllegalArgumentException("resolutionMS must be > 0.0 (got: " + resolutionMS + ")");
+    }
+    if (intervalSec <= 0.0) {
+      throw new IllegalArgumentException("intervalSec must be > 0.0 (got: " + intervalSec + ")");
+    }
+    resolutionNS = (long) (resolutionMS * 1000000);
+    intervalNS = (long) (intervalSec * 1000000000);
+    log = new PrintStream(new FileOutputStream(logPath), true, "UTF-8");
+    log.println("# resolution " + resolutionMS + " msec; all times in msec");
+    log.println("# startSec\thiccupCount\thiccupP50\thiccupP99\thiccupMax\ttaskCount\ttaskP50\ttaskP99\ttaskMax");
+    setName("HiccupRecorder");
+    setDaemon(true);
+    // Don't let the searchers starve us, else we'd record
+    // our own scheduling delays as hiccups:
+    setPriority(Thread.MAX_PRIORITY);
+  }
+
+  // Called from search threads; latencyNS should include
+  // any time the task was queued:
+  public void recordTask(long latencyNS) {
+    taskRecorder.recordValue(HistogramUtil.toMicros(latencyNS));
+  }
+
+  @Override
+  public void run() {
+    startNS = System.nanoTime();
+    long intervalStartNS = startNS;
+    final long resolutionUS = HistogramUtil.toMicros(resolutionNS);
+    try {
+      while (!stop) {
+        final long t0 = System.nanoTime();
+        Thread.sleep(resolutionNS/1000000, (int) (resolutionNS%1000000));
+        final long t1 = System.nanoTime();
+        final long hiccupNS = t1 - t0 - resolutionNS;
+        hiccups.recordValueWithExpectedInterval(HistogramUtil.toMicros(hiccupNS), resolutionUS);
+        if (t1 - intervalStartNS >= intervalNS) {
+          logInterval(intervalStartNS);
+          intervalStartNS = t1;
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    logInterval(intervalStartNS);
+  }
+
+  private void logInterval(long intervalStartNS) {
+    if (taskLatencies == null) {
+      taskLatencies = taskRecorder.getIntervalHistogram();
+    } else {
+      // Reuses the previous interval's histogram:
+      taskLatencies = taskRecorder.getIntervalHistogram(taskLatencies);
+    }
+    allHiccups.add(hiccups);
+    log.println(String.format(Locale.ENGLISH, "%.3f\t%d\t%.3f\t%.3f\t%.3f\t%d\t%.3f\t%.3f\t%.3f",
+                              (intervalStartNS - startNS)/1000000000.0,
+                              hiccups.getTotalCount(),
+                              hiccups.getValueAtPercentile(50.0)/1000.0,
+                              hiccups.getValueAtPercentile(99.0)/1000.0,
+                              hiccups.getMaxValue()/1000.0,
+                              taskLatencies.getTotalCount(),
+                              taskLatencies.getValueAtPercentile(50.0)/1000.0,
+                              taskLatencies.getValueAtPercentile(99.0)/1000.0,
+                              taskLatencies.getMaxValue()/1000.0));
+    hiccups.reset();
+  }
+
+  // Stops recording, logs the last (partial) interval and
+  // closes the log:
+  public void finish() throws InterruptedException {
+    stop = true;
+    join();
+    log.close();
+  }
+
+  // Only call these after finish:
+
+  public void printSummary(PrintStream out) {
+    out.println("Hiccups (resolution " + (resolutionNS/1000000.0) + " msec): " + HistogramUtil.summarize(allHiccups));
+  }
+
+  // Writes the whole run's hiccups to <prefix>.hiccup.hgrm:
+  public void write(String prefix) throws IOException {
+    HistogramUtil.writeHistogram(allHiccups, prefix + ".hiccup.hgrm");
+  }
+}
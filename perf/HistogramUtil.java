@@ -0,0 +1,69 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+
+import org.HdrHistogram.Histogram;
+
+// Shared latency histogram conventions: values are recorded
+// in microseconds, up to 1 hour, with 3 significant digits,
+// and reported in msec.  Needs HdrHistogram 2.1+.
+class HistogramUtil {
+
+  private HistogramUtil() {
+  }
+
+  static final long MAX_LATENCY_US = 3600L * 1000 * 1000;
+
+  // Auto-resizing, so it only grows to cover the values
+  // actually recorded: a fixed 1 hour range costs ~180 KB
+  // per histogram, which adds up over categories and threads
+  // in the heap we are measuring:
+  static Histogram newHistogram() {
+    return new Histogram(3);
+  }
+
+  // Clamps to the histogram's range:
+  static long toMicros(long ns) {
+    return Math.min(MAX_LATENCY_US, Math.max(0, ns/1000));
+  }
+
+  static void writeHistogram(Histogram h, String path) throws IOException {
+    final PrintStream out = new PrintStream(new FileOutputStream(path), false, "UTF-8");
+    try {
+      // Recorded in usec; report in msec:
+      h.outputPercentileDistribution(out, 1000.0);
+    } finally {
+      out.close();
+    }
+  }
+
+  static String summarize(Histogram h) {
+    return String.format(Locale.ENGLISH, "count=%d p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f msec",
+                         h.getTotalCount(),
+                         h.getValueAtPercentile(50.0)/1000.0,
+                         h.getValueAtPercentile(90.0)/1000.0,
+                         h.getValueAtPercentile(99.0)/1000.0,
+                         h.getValueAtPercentile(99.9)/1000.0,
+                         h.getMaxValue()/1000.0);
+  }
+}
@@ -0,0 +1,353 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+
+// Pipelined indexing for IndexThreads: parse threads read
+// and parse line docs (including facet fields) into pooled
+// DocStates and hand them through a bounded queue to index
+// threads, which only call IndexWriter.add/updateDocument and
+// then return the DocState to the free pool, so nothing is
+// allocated per doc beyond what LineFileDocs already does.
+// Analysis happens inside addDocument, so it counts towards
+// the index stage.
+//
+// Each stage records how long its threads were busy and how
+// long they waited on the queue, and a sampler thread tracks
+// queue occupancy.  A mostly full queue means the index
+// stage is the bottleneck; a mostly empty one means parsing
+// is.
+class IndexPipeline {
+
+  private final static long SAMPLE_INTERVAL_MSEC = 10;
+
+  private final LineFileDocs docs;
+  private final Random random;
+  private final boolean doUpdate;
+  private final AtomicInteger count;
+  private final AtomicBoolean stop;
+  private final AtomicBoolean failed;
+  private final CountDownLatch startLatch;
+
+  private final int numIndexThreads;
+  private final int queueSize;
+
+  // Parsed docs waiting to be indexed:
+  private final BlockingQueue<Slot> parsed;
+
+  // DocStates ready to be filled; sized so a parse thread
+  // never finds it empty:
+  private final BlockingQueue<Slot> free;
+
+  // Sent once per index thread after the last doc:
+  private final Slot end = new Slot(null);
+
+  private final AtomicInteger liveParseThreads;
+
+  private final Stage parseStage = new Stage();
+  private final Stage indexStage = new Stage();
+
+  private final Sampler sampler;
+
+  private volatile long startNS;
+  private long endNS;
+
+  public IndexPipeline(Random random, LineFileDocs docs, CountDownLatch startLatch,
+                       int numParseThreads, int numIndexThreads, int queueSize,
+                       boolean doUpdate, AtomicInteger count, AtomicBoolean stop, AtomicBoolean failed) {
+    if (numParseThreads <= 0) {
+      throw new IllegalArgumentException("numParseThreads must be > 0 (got: " + numParseThreads + ")");
+    }
+    if (numIndexThreads <= 0) {
+      throw new IllegalArgumentException("numIndexThreads must be > 0 (got: " + numIndexThreads + ")");
+    }
+    if (queueSize <= 0) {
+      throw new IllegalArgumentException("queueSize must be > 0 (got: " + queueSize + ")");
+    }
+    this.random = random;
+    this.docs = docs;
+    this.startLatch = startLatch;
+    this.numIndexThreads = numIndexThreads;
+    this.queueSize = queueSize;
+    this.doUpdate = doUpdate;
+    this.count = count;
+    this.stop = stop;
+    this.failed = failed;
+
+    parsed = new ArrayBlockingQueue<Slot>(queueSize);
+
+    // Each thread holds at most one DocState, so this many
+    // are enough:
+    final int poolSize = queueSize + numParseThreads + numIndexThreads;
+    free = new ArrayBlockingQueue<Slot>(poolSize);
+    for(int i=0;i<poolSize;i++) {
+      free.add(new Slot(docs.newDocState()));
+    }
+    liveParseThreads = new AtomicInteger(numParseThreads);
+    sampler = new Sampler();
+  }
+
+  private static final class Slot {
+    final LineFileDocs.DocState state;
+    Document doc;
+
+    Slot(LineFileDocs.DocState state) {
+      this.state = state;
+    }
+  }
+
+  // Per-stage totals, added to as each thread finishes:
+  private static final class Stage {
+    final AtomicLong docs = new AtomicLong();
+    final AtomicLong busyNS = new AtomicLong();
+    final AtomicLong waitNS = new AtomicLong();
+    final AtomicInteger threads = new AtomicInteger();
+
+    void add(long docCount, long busy, long wait) {
+      docs.addAndGet(docCount);
+      busyNS.addAndGet(busy);
+      waitNS.addAndGet(wait);
+      threads.incrementAndGet();
+    }
+  }
+
+  public Thread newParseThread() {
+    return new ParseThread();
+  }
+
+  public Thread newIndexThread(IndexWriter w) {
+    return new IndexThread(w);
+  }
+
+  // Call once indexing starts (after startLatch is released):
+  public void start() {
+    startNS = System.nanoTime();
+    sampler.start();
+  }
+
+  // Call once all parse and index threads have finished:
+  public void finish() throws InterruptedException {
+    endNS = System.nanoTime();
+    sampler.finish();
+  }
+
+  // Hands off the slot, unless indexing failed meanwhile:
+  private boolean put(Slot slot) {
+    try {
+      while (!parsed.offer(slot, 100, TimeUnit.MILLISECONDS)) {
+        if (failed.get()) {
+          return false;
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  private class ParseThread extends Thread {
+
+    // Shared by every DocState this thread fills, so the date
+    // cache and line buffer stay warm and chunked mode keeps
+    // reading this thread's chunk:
+    private final LineFileDocs.ReadState readState = new LineFileDocs.ReadState();
+
+    @Override
+    public void run() {
+      long docCount = 0;
+      long busyNS = 0;
+      long waitNS = 0;
+      try {
+        startLatch.await();
+        while (!stop.get() && !failed.get()) {
+          final Slot slot = free.poll();
+          assert slot != null;
+          slot.state.readState = readState;
+          final long t0 = System.nanoTime();
+          slot.doc = docs.nextDoc(slot.state);
+          final long t1 = System.nanoTime();
+          busyNS += t1 - t0;
+          if (slot.doc == null) {
+            free.add(slot);
+            break;
+          }
+          if (!put(slot)) {
+            break;
+          }
+          waitNS += System.nanoTime() - t1;
+          docCount++;
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        failed.set(true);
+        throw new RuntimeException(e);
+      } finally {
+        parseStage.add(docCount, busyNS, waitNS);
+        if (liveParseThreads.decrementAndGet() == 0) {
+          for(int i=0;i<numIndexThreads;i++) {
+            if (!put(end)) {
+              break;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private class IndexThread extends Thread {
+    private final IndexWriter w;
+
+    IndexThread(IndexWriter w) {
+      this.w = w;
+    }
+
+    @Override
+    public void run() {
+      final int maxDoc = w.maxDoc();
+      final char[] idChars = new char[LineFileDocs.ID_LENGTH];
+      long docCount = 0;
+      long busyNS = 0;
+      long waitNS = 0;
+      try {
+        startLatch.await();
+        final long tStart = System.currentTimeMillis();
+        while (true) {
+          final long t0 = System.nanoTime();
+          final Slot slot = parsed.take();
+          final long t1 = System.nanoTime();
+          waitNS += t1 - t0;
+          if (slot == end) {
+            break;
+          }
+          final int totalCount = count.incrementAndGet();
+          if ((totalCount % 100000) == 0) {
+            System.out.println("Indexer: " + totalCount + " docs... (" + (System.currentTimeMillis() - tStart) + " msec)");
+          }
+          if (doUpdate) {
+            LineFileDocs.intToID(random.nextInt(maxDoc), idChars);
+            final String updateID = new String(idChars);
+            slot.doc.getField("id").setStringValue(updateID);
+            w.updateDocument(new Term("id", updateID), slot.doc);
+          } else {
+            w.addDocument(slot.doc);
+          }
+          slot.doc = null;
+          free.add(slot);
+          busyNS += System.nanoTime() - t1;
+          docCount++;
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        failed.set(true);
+        throw new RuntimeException(e);
+      } finally {
+        indexStage.add(docCount, busyNS, waitNS);
+      }
+    }
+  }
+
+  // Samples the parsed queue's occupancy:
+  private class Sampler extends Thread {
+    private volatile boolean stopSampler;
+    long samples;
+    long sumSize;
+    int maxSize;
+    long fullSamples;
+    long emptySamples;
+
+    Sampler() {
+      setName("IndexPipeline sampler");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (!stopSampler) {
+        final int size = parsed.size();
+        samples++;
+        sumSize += size;
+        maxSize = Math.max(maxSize, size);
+        if (size == queueSize) {
+          fullSamples++;
+        } else if (size == 0) {
+          emptySamples++;
+        }
+        try {
+          Thread.sleep(SAMPLE_INTERVAL_MSEC);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+
+    void finish() throws InterruptedException {
+      stopSampler = true;
+      join();
+    }
+  }
+
+  // Only call this after finish:
+  public void printStats(PrintStream out) {
+    final double wallSec = (endNS - startNS)/1000000000.0;
+    out.println("\nIndexPipeline: " + String.format(Locale.ENGLISH, "%.1f sec", wallSec));
+    printStage(out, "parse", parseStage, wallSec);
+    printStage(out, "index", indexStage, wallSec);
+    if (sampler.samples > 0) {
+      out.println(String.format(Locale.ENGLISH, "  queue: size %d; avg %.1f; max %d; full %.1f%% of samples; empty %.1f%% of samples",
+                                queueSize,
+                                sampler.sumSize/(double) sampler.samples,
+                                sampler.maxSize,
+                                100.0*sampler.fullSamples/sampler.samples,
+                                100.0*sampler.emptySamples/sampler.samples));
+    }
+  }
+
+  // busy% is per thread, averaged over the stage's threads;
+  // docs/busy-sec is roughly what one thread of this stage can
+  // sustain on its own:
+  private static void printStage(PrintStream out, String name, Stage stage, double wallSec) {
+    final int threads = stage.threads.get();
+    final long docCount = stage.docs.get();
+    final double busySec = stage.busyNS.get()/1000000000.0;
+    final double waitSec = stage.waitNS.get()/1000000000.0;
+    out.println(String.format(Locale.ENGLISH, "  %s: %d threads; %d docs; %.1f docs/sec; busy %.1f%%; waiting %.1f%%; %.1f docs/busy-sec/thread",
+                              name, threads, docCount,
+                              wallSec > 0 ? docCount/wallSec : 0.0,
+                              threads > 0 && wallSec > 0 ? 100.0*busySec/(threads*wallSec) : 0.0,
+                              threads > 0 && wallSec > 0 ? 100.0*waitSec/(threads*wallSec) : 0.0,
+                              busySec > 0 ? docCount/busySec : 0.0));
+  }
+}
@@ -43,16 +43,80 @@ class IndexThreads {
   final AtomicBoolean failed;
   final LineFileDocs docs;
   final Thread[] threads;
+  final IndexPipeline pipeline;
+  final RatePacer pacer;
+
+  // Everything besides the writers, docs source and facets;
+  // set what you need and leave the rest at the defaults:
+  public static class Options {
+    public boolean storeBody;
+    public boolean tvsBody;
+    public boolean bodyPostingsOffsets;
+    public int numThreads = 1;
+    // -1 means index all docs:
+    public int docCountLimit = -1;
+    public boolean addGroupingFields;
+    public boolean printDPS;
+    public boolean doUpdate;
+    public boolean cloneDocs;
+
+    // Each thread reads its own memory-mapped chunks of the
+    // line file instead of sharing one reader:
+    public boolean mmapLineDocs;
+
+    // If > 0, that many threads parse docs and feed them
+    // through a queue of pipelineQueueSize docs to the
+    // numThreads indexing threads (see IndexPipeline):
+    public int parseThreadCount;
+    public int pipelineQueueSize;
+
+    // If non-null, all threads share it to hold its rate
+    // schedule; else if docsPerSecPerThread > 0, they share a
+    // constant pacer at numThreads times that rate:
+    public RatePacer pacer;
+    public float docsPerSecPerThread = -1.0f;
+  }
 
-  public IndexThreads(Random random, IndexWriter w, Map<String,TaxonomyWriter> facetWriters,
-                      List<FacetGroup> facetGroups,
-                      String lineFile, boolean storeBody, boolean tvsBody,
-                      boolean bodyPostingsOffsets,
-                      int numThreads, int docCountLimit, boolean addGroupingFields, boolean printDPS,
-                      boolean doUpdate, float docsPerSecPerThread, boolean cloneDocs) throws IOException, InterruptedException {
+  // Indexing thread i adds to writers[i % writers.length].
+  // All threads still share one LineFileDocs, so each doc's
+  // id is its line number no matter which writer it went
+  // to.
+  public IndexThreads(Random random, IndexWriter[] writers, Map<String,TaxonomyWriter> facetWriters,
+                      List<FacetGroup> facetGroups, String lineFile, Options options) throws IOException, InterruptedException {
+    final int numThreads = options.numThreads;
+    final int docCountLimit = options.docCountLimit;
+    final boolean addGroupingFields = options.addGroupingFields;
+    final boolean doUpdate = options.doUpdate;
+    final int parseThreadCount = options.parseThreadCount;
     final AtomicInteger groupBlockIndex;
 
-    docs = new LineFileDocs(lineFile, false, storeBody, tvsBody, bodyPostingsOffsets, cloneDocs, facetWriters, facetGroups);
+    if (numThreads < writers.length) {
+      throw new IllegalArgumentException("need at least one indexing thread per writer (got " + numThreads + " threads for " + writers.length + " writers)");
+    }
+
+    if (options.pacer == null && options.docsPerSecPerThread > 0) {
+      pacer = new RatePacer(RatePacer.constant(options.docsPerSecPerThread * numThreads), 0.0);
+    } else {
+      pacer = options.pacer;
+    }
+
+    if (parseThreadCount > 0) {
+      if (addGroupingFields) {
+        throw new IllegalArgumentException("cannot add grouping fields with parse threads");
+      }
+      if (pacer != null) {
+        throw new IllegalArgumentException("cannot limit docsPerSec with parse threads");
+      }
+      if (options.cloneDocs) {
+        throw new IllegalArgumentException("cannot clone docs with parse threads");
+      }
+    }
+
+    docs = new LineFileDocs(lineFile, false, options.storeBody, options.tvsBody, options.bodyPostingsOffsets, options.cloneDocs,
+                            facetWriters, facetGroups, options.mmapLineDocs);
+    if (docCountLimit != -1) {
+      docs.setDocCountLimit(docCountLimit);
+    }
     if (addGroupingFields) {
       IndexThread.group100 = randomStrings(100, random);
       IndexThread.group10K = randomStrings(10000, random);
@@ -63,21 +127,37 @@ class IndexThreads {
       groupBlockIndex = null;
     }
 
-    threads = new Thread[numThreads];
-    
-    final CountDownLatch stopLatch = new CountDownLatch(numThreads);
     final AtomicInteger count = new AtomicInteger();
     stop = new AtomicBoolean(false);
     failed = new AtomicBoolean(false);
 
-    for(int thread=0;thread<numThreads;thread++) {
-      threads[thread] = new IndexThread(random, startLatch, stopLatch, w, docs, docCountLimit, count, doUpdate, groupBlockIndex, stop, docsPerSecPerThread, failed);
-      threads[thread].start();
+    if (parseThreadCount > 0) {
+      pipeline = new IndexPipeline(random, docs, startLatch, parseThreadCount, numThreads, options.pipelineQueueSize,
+                                   doUpdate, count, stop, failed);
+      threads = new Thread[parseThreadCount + numThreads];
+      for(int thread=0;thread<parseThreadCount;thread++) {
+        threads[thread] = pipeline.newParseThread();
+        threads[thread].start();
+      }
+      for(int thread=parseThreadCount;thread<threads.length;thread++) {
+        threads[thread] = pipeline.newIndexThread(writers[(thread-parseThreadCount) % writers.length]);
+        threads[thread].start();
+      }
+    } else {
+      pipeline = null;
+      threads = new Thread[numThreads];
+    
+      final CountDownLatch stopLatch = new CountDownLatch(numThreads);
+
+      for(int thread=0;thread<numThreads;thread++) {
+        threads[thread] = new IndexThread(random, startLatch, stopLatch, writers[thread % writers.length], docs, docCountLimit, count, doUpdate, groupBlockIndex, stop, pacer, failed);
+        threads[thread].start();
+      }
     }
 
     Thread.sleep(10);
 
-    if (printDPS) {
+    if (options.printDPS) {
       printer = new IngestRatePrinter(count, stop);
       printer.start();
     } else {
@@ -86,7 +166,13 @@ class IndexThreads {
   }
 
   public void start() {
+    if (pacer != null) {
+      pacer.start();
+    }
     startLatch.countDown();
+    if (pipeline != null) {
+      pipeline.start();
+    }
   }
 
   public long getBytesIndexed() {
@@ -101,6 +187,13 @@ class IndexThreads {
     if (printer != null) {
       printer.join();
     }
+    if (pipeline != null) {
+      pipeline.finish();
+      pipeline.printStats(System.out);
+    }
+    if (pacer != null) {
+      pacer.printStats(System.out);
+    }
     docs.close();
   }
 
@@ -128,14 +221,14 @@ class IndexThreads {
     private final boolean doUpdate;
     private final CountDownLatch startLatch;
     private final CountDownLatch stopLatch;
-    private final float docsPerSec;
+    private final RatePacer pacer;
     private final Random random;
     private final AtomicBoolean failed;
 
     public IndexThread(Random random, CountDownLatch startLatch, CountDownLatch stopLatch, IndexWriter w,
                        LineFileDocs docs,
                        int numTotalDocs, AtomicInteger count, boolean doUpdate, AtomicInteger groupBlockIndex,
-                       AtomicBoolean stop, float docsPerSec, AtomicBoolean failed) {
+                       AtomicBoolean stop, RatePacer pacer, AtomicBoolean failed) {
       this.startLatch = startLatch;
       this.stopLatch = stopLatch;
       this.w = w;
@@ -145,7 +238,7 @@ class IndexThreads {
       this.doUpdate = doUpdate;
       this.groupBlockIndex = groupBlockIndex;
       this.stop = stop;
-      this.docsPerSec = docsPerSec;
+      this.pacer = pacer;
       this.random = random;
       this.failed = failed;
     }
@@ -156,6 +249,7 @@ class IndexThreads {
       try {
         final LineFileDocs.DocState docState = docs.newDocState();
         final Field idField = docState.id;
+        final char[] idChars = new char[LineFileDocs.ID_LENGTH];
         final long tStart = System.currentTimeMillis();
         final Field group100Field;
         final Field group100KField;
@@ -283,11 +377,12 @@ class IndexThreads {
 
             docState.doc.removeField("groupend");
           }
-        } else if (docsPerSec > 0 || doUpdate) {
+        } else if (pacer != null || doUpdate) {
 
-          final long startNS = System.nanoTime();
-          int threadCount = 0;
           while (!stop.get()) {
+            if (pacer != null) {
+              pacer.acquire();
+            }
             final Document doc = docs.nextDoc(docState);
             if (doc == null) {
               break;
@@ -303,7 +398,8 @@ class IndexThreads {
             // nocommit have a 'sometimesAdd' mode where 25%
             // of the time we add a new doc
             if (doUpdate) {
-              final String updateID = LineFileDocs.intToID(random.nextInt(maxDoc));
+              LineFileDocs.intToID(random.nextInt(maxDoc), idChars);
+              final String updateID = new String(idChars);
               // NOTE: can't use docState.id in case doClone
               // was true
               doc.getField("id").setStringValue(updateID);
@@ -312,14 +408,6 @@ class IndexThreads {
               w.addDocument(doc);
             }
             count.incrementAndGet();
-            threadCount++;
-
-            final long sleepNS = startNS + (long) (1000000000*(threadCount/docsPerSec)) - System.nanoTime();
-            if (sleepNS > 0) {
-              final long sleepMS = sleepNS/1000000;
-              final int sleepNS2 = (int) (sleepNS - sleepMS*1000000);
-              Thread.sleep(sleepMS, sleepNS2);
-            }
           }
         } else {
           while (true) {
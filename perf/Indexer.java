@@ -125,11 +125,24 @@ public final class Indexer {
     final boolean tvsBody = args.getFlag("-tvs");
     final boolean bodyPostingsOffsets = args.getFlag("-bodyPostingsOffsets");
     final int maxConcurrentMerges = args.getInt("-maxConcurrentMerges");
+    final boolean mmapLineDocs = args.getFlag("-mmapLineDocs");
+    final int parseThreadCount = Integer.parseInt(args.getString("-parseThreadCount", "0"));
+    final int pipelineQueueSize = Integer.parseInt(args.getString("-pipelineQueueSize", "1000"));
+    // If > 1, index into this many separate writers, then
+    // addIndexes them into the final index:
+    final int shardCount = Integer.parseInt(args.getString("-shardCount", "1"));
+    // If set, write flush/merge/commit/stall events here (see
+    // TimelineInfoStream):
+    final String timelinePath = args.getString("-timeline", null);
 
     if (addGroupingFields && docCountLimit == -1) {
       throw new RuntimeException("cannot add grouping fields unless docCount is set");
     }
 
+    if (shardCount > 1 && doUpdate) {
+      throw new RuntimeException("cannot update with more than one shard");
+    }
+
     args.check();
 
     System.out.println("Dir: " + dirImpl);
@@ -158,9 +171,42 @@ public final class Indexer {
     }
     System.out.println("Body postings offsets: " + (bodyPostingsOffsets ? "yes" : "no"));
     System.out.println("Max concurrent merges: " + maxConcurrentMerges);
+    System.out.println("Memory-mapped line docs chunks: " + (mmapLineDocs ? "yes" : "no"));
+    if (parseThreadCount > 0) {
+      System.out.println("Parse threads: " + parseThreadCount + " (pipeline queue size " + pipelineQueueSize + ")");
+    }
+    // Shards split the RAM buffer (or buffered doc count) and
+    // merge threads, so the whole build uses the same
+    // resources as one writer:
+    final double shardRAMBufferSizeMB = ramBufferSizeMB > 0 ? ramBufferSizeMB / shardCount : ramBufferSizeMB;
+    final int shardMaxBufferedDocs = maxBufferedDocs > 0 ? Math.max(2, maxBufferedDocs / shardCount) : maxBufferedDocs;
+    final int shardMaxConcurrentMerges = Math.max(1, maxConcurrentMerges / shardCount);
+    // Shards are built next to the index, not inside it:
+    final File indexPathFile = new File(args.getString("-indexPath")).getAbsoluteFile();
+    final File shardsPath = new File(indexPathFile.getParentFile(), indexPathFile.getName() + ".shards");
+    if (shardCount > 1 && shardsPath.exists()) {
+      // Left over from a run that failed before cleaning up:
+      System.out.println("Removing stale shards directory " + shardsPath);
+      deleteShards(shardsPath);
+    }
+    if (shardCount > 1) {
+      System.out.println("Shards: " + shardCount + " in " + shardsPath + "; per shard: RAM Buffer MB " + shardRAMBufferSizeMB +
+                         ", max buffered docs " + shardMaxBufferedDocs +
+                         ", max concurrent merges " + shardMaxConcurrentMerges);
+    }
+    if (timelinePath != null) {
+      System.out.println("Timeline: " + timelinePath);
+    }
     
-    if (verbose) {
-      InfoStream.setDefault(new PrintStreamInfoStream(System.out));
+    final TimelineInfoStream timeline;
+    if (timelinePath != null) {
+      timeline = new TimelineInfoStream(timelinePath, verbose ? new PrintStreamInfoStream(System.out) : null);
+      InfoStream.setDefault(timeline);
+    } else {
+      timeline = null;
+      if (verbose) {
+        InfoStream.setDefault(new PrintStreamInfoStream(System.out));
+      }
     }
 
     final IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_50, a);
@@ -223,6 +269,30 @@ public final class Indexer {
 
     System.out.println("IW config=" + iwc);
 
+    // Each shard gets its own directory and writer; the
+    // threads index into these, and the final writer then
+    // just adds them:
+    final Directory[] shardDirs;
+    final IndexWriter[] shardWriters;
+    if (shardCount > 1) {
+      shardDirs = new Directory[shardCount];
+      shardWriters = new IndexWriter[shardCount];
+      for(int shard=0;shard<shardCount;shard++) {
+        final IndexWriterConfig shardIWC = iwc.clone();
+        shardIWC.setRAMBufferSizeMB(shardRAMBufferSizeMB);
+        shardIWC.setMaxBufferedDocs(shardMaxBufferedDocs);
+        final ConcurrentMergeScheduler shardCMS = new ConcurrentMergeScheduler();
+        shardCMS.setMaxMergeCount(shardMaxConcurrentMerges+2);
+        shardCMS.setMaxThreadCount(shardMaxConcurrentMerges);
+        shardIWC.setMergeScheduler(shardCMS);
+        shardDirs[shard] = od.open(new File(shardsPath, "shard" + shard));
+        shardWriters[shard] = new IndexWriter(shardDirs[shard], shardIWC);
+      }
+    } else {
+      shardDirs = null;
+      shardWriters = null;
+    }
+
     final IndexWriter w = new IndexWriter(dir, iwc);
     final Map<String,TaxonomyWriter> facetWriters;
     if (doFacets) {
@@ -249,9 +319,20 @@ public final class Indexer {
     // Fixed seed so group field values are always consistent:
     final Random random = new Random(17);
 
-    IndexThreads threads = new IndexThreads(random, w, facetWriters, facetGroups, lineFile, storeBody, tvsBody, bodyPostingsOffsets,
-                                            numThreads, docCountLimit, addGroupingFields, printDPS,
-                                            doUpdate, -1.0f, false);
+    final IndexThreads.Options indexOptions = new IndexThreads.Options();
+    indexOptions.storeBody = storeBody;
+    indexOptions.tvsBody = tvsBody;
+    indexOptions.bodyPostingsOffsets = bodyPostingsOffsets;
+    indexOptions.numThreads = numThreads;
+    indexOptions.docCountLimit = docCountLimit;
+    indexOptions.addGroupingFields = addGroupingFields;
+    indexOptions.printDPS = printDPS;
+    indexOptions.doUpdate = doUpdate;
+    indexOptions.mmapLineDocs = mmapLineDocs;
+    indexOptions.parseThreadCount = parseThreadCount;
+    indexOptions.pipelineQueueSize = pipelineQueueSize;
+    IndexThreads threads = new IndexThreads(random, shardWriters != null ? shardWriters : new IndexWriter[] {w},
+                                            facetWriters, facetGroups, lineFile, indexOptions);
 
     System.out.println("\nIndexer: start");
     final long t0 = System.currentTimeMillis();
@@ -264,6 +345,24 @@ public final class Indexer {
 
     threads.stop();
 
+    if (shardWriters != null) {
+      final long tIndexed = System.currentTimeMillis();
+      System.out.println("\nIndexer: shard indexing done (" + (tIndexed-t0) + " msec)");
+      try {
+        closeShards(shardWriters, waitForMerges);
+        final long tClosed = System.currentTimeMillis();
+        System.out.println("\nIndexer: shard close done (took " + (tClosed-tIndexed) + " msec)");
+        w.addIndexes(shardDirs);
+        final long tAdded = System.currentTimeMillis();
+        System.out.println("\nIndexer: addIndexes done (took " + (tAdded-tClosed) + " msec)");
+      } finally {
+        for(Directory shardDir : shardDirs) {
+          shardDir.close();
+        }
+        deleteShards(shardsPath);
+      }
+    }
+
     final long t1 = System.currentTimeMillis();
     System.out.println("\nIndexer: indexing done (" + (t1-t0) + " msec); total " + w.maxDoc() + " docs");
     // if we update we can not tell how many docs
@@ -352,9 +451,61 @@ public final class Indexer {
     w.close(waitForMerges);
     System.out.println("\nIndexer: close took " + (System.currentTimeMillis() - tCloseStart) + " msec");
     dir.close();
+    if (timeline != null) {
+      timeline.printSummary(System.out);
+      timeline.close();
+    }
     final long tFinal = System.currentTimeMillis();
     System.out.println("\nIndexer: finished (" + (tFinal-t0) + " msec)");
     System.out.println("\nIndexer: net bytes indexed " + threads.getBytesIndexed());
     System.out.println("\nIndexer: " + (threads.getBytesIndexed()/1024./1024./1024./((tFinal-t0)/3600000.)) + " GB/hour plain text");
   }
+
+  // Closes (and so commits) all shard writers at once, since
+  // each close has its own final flush (and maybe merges) to
+  // do:
+  private static void closeShards(final IndexWriter[] writers, final boolean waitForMerges) throws Exception {
+    final Thread[] threads = new Thread[writers.length];
+    final AtomicBoolean failed = new AtomicBoolean();
+    for(int shard=0;shard<writers.length;shard++) {
+      final IndexWriter writer = writers[shard];
+      threads[shard] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              writer.close(waitForMerges);
+            } catch (Exception e) {
+              failed.set(true);
+              throw new RuntimeException(e);
+            }
+          }
+        };
+      threads[shard].start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    if (failed.get()) {
+      throw new RuntimeException("exceptions while closing shards");
+    }
+  }
+
+  // Deletes <indexPath>.shards and the shard indexes in it:
+  private static void deleteShards(File shardsPath) {
+    final File[] shardPaths = shardsPath.listFiles();
+    if (shardPaths != null) {
+      for(File shardPath : shardPaths) {
+        final File[] files = shardPath.listFiles();
+        if (files != null) {
+          for(File file : files) {
+            file.delete();
+          }
+        }
+        shardPath.delete();
+      }
+    }
+    if (!shardsPath.delete()) {
+      System.out.println("WARNING: could not remove " + shardsPath);
+    }
+  }
 }
@@ -0,0 +1,87 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.AtomicReader;
+
+// Hooks for custom Java Flight Recorder events, so a .jfr
+// recording can line up GC, lock contention and I/O with
+// the exact tasks, reopens and merge warmings that were
+// slow.  JFR events must subclass jdk.jfr.Event, which needs
+// Java 11+ to compile, so the real implementation lives in
+// perf/jfr/JFREventsImpl.java and is only compiled and
+// loaded when available; otherwise all hooks are no-ops.
+//
+// The begin methods return an opaque (possibly null) token
+// to pass to the matching end method.
+class JFREvents {
+
+  public static final JFREvents INSTANCE = load();
+
+  private static JFREvents load() {
+    try {
+      final JFREvents events = (JFREvents) Class.forName("perf.JFREventsImpl").newInstance();
+      if (events.isRecording()) {
+        System.out.println("JFR events: enabled");
+      }
+      return events;
+    } catch (ClassNotFoundException cnfe) {
+      // Not compiled (JDK < 11)
+    } catch (LinkageError le) {
+      // Compiled, but running on a JVM without jdk.jfr
+    } catch (Exception e) {
+      System.out.println("JFR events: disabled: " + e);
+    }
+    return new JFREvents();
+  }
+
+  // True if a flight recording was already running when
+  // we loaded (e.g. -XX:StartFlightRecording):
+  public boolean isRecording() {
+    return false;
+  }
+
+  // A task arrived at the task source's queue (it may still
+  // be rejected):
+  public void taskQueued(Task task) {
+  }
+
+  // Called just before task.go; queueTimeNS is -1 if the
+  // task was not queued:
+  public Object taskStarted(Task task, long queueTimeNS) {
+    return null;
+  }
+
+  // Called after task.go; the event spans the whole run:
+  public void taskFinished(Object token, Task task, long queueTimeNS) {
+  }
+
+  public Object beginRefresh() {
+    return null;
+  }
+
+  public void endRefresh(Object token, boolean refreshed) {
+  }
+
+  public Object beginWarm() {
+    return null;
+  }
+
+  public void endWarm(Object token, AtomicReader reader) {
+  }
+}
@@ -0,0 +1,240 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+// Parses line docs dates ("dd-MMM-yyyy HH:mm:ss", e.g.
+// "27-Jan-2012 19:56:00") without allocating, giving the
+// same results as SimpleDateFormat in the default time
+// zone.  The fixed-width fields are decoded by hand, and
+// each day's local midnight comes from a small cache (filled
+// via Calendar), so the common case is a lookup plus some
+// arithmetic.  Anything else (other shapes, out of range
+// fields that SimpleDateFormat would leniently roll over,
+// or days with a DST transition) falls back to
+// SimpleDateFormat.
+//
+// Not thread safe: use one instance per thread.
+//
+// main checks this against SimpleDateFormat on random dates
+// in the given time zones (by default, ones where DST starts
+// at midnight), eg:
+//
+//   java perf.LineDateParser 1000000 America/Sao_Paulo Asia/Tehran
+final class LineDateParser {
+
+  private final static String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun",
+                                          "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+  private final static int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+  private final static long DAY_MSEC = 24L * 3600 * 1000;
+
+  // Direct-mapped cache of local midnight, keyed by day:
+  private final static int CACHE_SIZE = 1024;
+  private final int[] cacheKeys = new int[CACHE_SIZE];
+  private final long[] cacheMidnights = new long[CACHE_SIZE];
+
+  private final SimpleDateFormat dateParser = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
+  private final ParsePosition datePos = new ParsePosition(0);
+  private final Calendar cal = Calendar.getInstance();
+
+  // Set by parse:
+
+  // Epoch msec:
+  public long msec;
+
+  // Seconds since local midnight:
+  public int secOfDay;
+
+  public LineDateParser() {
+    // Marks empty slots, since all keys are positive:
+    for(int i=0;i<CACHE_SIZE;i++) {
+      cacheKeys[i] = -1;
+    }
+  }
+
+  // Returns false if the date could not be parsed at all:
+  public boolean parse(String s) {
+    if (parseFast(s)) {
+      return true;
+    }
+    datePos.setIndex(0);
+    final Date date = dateParser.parse(s, datePos);
+    if (date == null) {
+      return false;
+    }
+    msec = date.getTime();
+    cal.setTimeInMillis(msec);
+    secOfDay = cal.get(Calendar.HOUR_OF_DAY)*3600 + cal.get(Calendar.MINUTE)*60 + cal.get(Calendar.SECOND);
+    return true;
+  }
+
+  private boolean parseFast(String s) {
+    // dd-MMM-yyyy HH:mm:ss
+    // 01234567890123456789
+    if (s.length() < 20 ||
+        s.charAt(2) != '-' || s.charAt(6) != '-' || s.charAt(11) != ' ' ||
+        s.charAt(14) != ':' || s.charAt(17) != ':') {
+      return false;
+    }
+    // SimpleDateFormat would keep parsing more digits:
+    if (s.length() > 20 && Character.isDigit(s.charAt(20))) {
+      return false;
+    }
+    final int day = digits(s, 0, 2);
+    final int month = month(s);
+    final int year = digits(s, 7, 4);
+    final int hour = digits(s, 12, 2);
+    final int minute = digits(s, 15, 2);
+    final int second = digits(s, 18, 2);
+    // Leave lenient roll over (e.g. 30-Feb), and years
+    // near the Julian/Gregorian cutover, to SimpleDateFormat:
+    if (month == -1 || year < 1600 || day < 1 || day > daysInMonth(year, month) ||
+        hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+      return false;
+    }
+
+    final long midnight = getMidnight(year, month, day);
+    if (midnight == Long.MIN_VALUE) {
+      return false;
+    }
+    secOfDay = hour*3600 + minute*60 + second;
+    msec = midnight + secOfDay * 1000L;
+    return true;
+  }
+
+  // Local midnight of this day, or Long.MIN_VALUE if the day
+  // isn't exactly 24 hours long (DST transition):
+  private long getMidnight(int year, int month, int day) {
+    final int key = (year * 12 + month) * 32 + day;
+    final int slot = key & (CACHE_SIZE-1);
+    if (cacheKeys[slot] == key) {
+      return cacheMidnights[slot];
+    }
+    long midnight = getStartOfDay(year, month, day);
+    // Set the next day from scratch: add would keep the hour
+    // if this day started at 01:00:
+    if (midnight != Long.MIN_VALUE && getStartOfDay(year, month, day+1) - midnight != DAY_MSEC) {
+      midnight = Long.MIN_VALUE;
+    }
+    cacheKeys[slot] = key;
+    cacheMidnights[slot] = midnight;
+    return midnight;
+  }
+
+  // Long.MIN_VALUE if 00:00 doesn't exist on this day (DST
+  // starts at midnight, so the day starts at 01:00); day may
+  // be one past the end of the month:
+  private long getStartOfDay(int year, int month, int day) {
+    cal.clear();
+    cal.set(year, month, day);
+    final long msec = cal.getTimeInMillis();
+    if (cal.get(Calendar.HOUR_OF_DAY) != 0 || cal.get(Calendar.MINUTE) != 0 || cal.get(Calendar.SECOND) != 0) {
+      return Long.MIN_VALUE;
+    }
+    return msec;
+  }
+
+  // -1 if not all digits:
+  private static int digits(String s, int start, int count) {
+    int value = 0;
+    for(int i=start;i<start+count;i++) {
+      final char ch = s.charAt(i);
+      if (ch < '0' || ch > '9') {
+        return -1;
+      }
+      value = value*10 + (ch - '0');
+    }
+    return value;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    if (month == 1 && (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))) {
+      return 29;
+    }
+    return DAYS_IN_MONTH[month];
+  }
+
+  private static int month(String s) {
+    for(int i=0;i<MONTHS.length;i++) {
+      if (s.regionMatches(3, MONTHS[i], 0, 3)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private final static String[] CHECK_ZONES = {"UTC", "America/New_York", "Europe/London", "Australia/Lord_Howe",
+                                               "America/Sao_Paulo", "Asia/Tehran", "America/Havana", "Asia/Beirut",
+                                               "America/Santiago", "America/Asuncion"};
+
+  // Compares msec and secOfDay against SimpleDateFormat +
+  // Calendar; throws if any date differs:
+  public static void main(String[] args) {
+    final int count = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+    final String[] zones;
+    if (args.length > 1) {
+      zones = new String[args.length-1];
+      System.arraycopy(args, 1, zones, 0, zones.length);
+    } else {
+      zones = CHECK_ZONES;
+    }
+    final TimeZone defaultZone = TimeZone.getDefault();
+    int totalMismatches = 0;
+    try {
+      for(String zone : zones) {
+        TimeZone.setDefault(TimeZone.getTimeZone(zone));
+        final LineDateParser parser = new LineDateParser();
+        final SimpleDateFormat sdf = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
+        final Calendar cal = Calendar.getInstance();
+        final Random random = new Random(17);
+        int mismatches = 0;
+        for(int i=0;i<count;i++) {
+          final String s = String.format(Locale.US, "%02d-%s-%04d %02d:%02d:%02d",
+                                         1+random.nextInt(28), MONTHS[random.nextInt(12)], 1970+random.nextInt(60),
+                                         random.nextInt(24), random.nextInt(60), random.nextInt(60));
+          final Date date = sdf.parse(s, new ParsePosition(0));
+          cal.setTime(date);
+          final int expectedSecOfDay = cal.get(Calendar.HOUR_OF_DAY)*3600 + cal.get(Calendar.MINUTE)*60 + cal.get(Calendar.SECOND);
+          if (!parser.parse(s) || parser.msec != date.getTime() || parser.secOfDay != expectedSecOfDay) {
+            if (mismatches < 10) {
+              System.out.println("  " + zone + ": " + s + ": got msec=" + parser.msec + " secOfDay=" + parser.secOfDay +
+                                 "; expected msec=" + date.getTime() + " secOfDay=" + expectedSecOfDay);
+            }
+            mismatches++;
+          }
+        }
+        System.out.println(zone + ": " + count + " dates; " + mismatches + " mismatches");
+        totalMismatches += mismatches;
+      }
+    } finally {
+      TimeZone.setDefault(defaultZone);
+    }
+    if (totalMismatches != 0) {
+      throw new RuntimeException(totalMismatches + " dates differ from SimpleDateFormat");
+    }
+  }
+}
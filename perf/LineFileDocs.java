@@ -18,23 +18,31 @@ package perf;
  */
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.text.ParsePosition;
-import java.text.SimpleDateFormat;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.document.*;
@@ -48,6 +56,7 @@ import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.FieldInfo.IndexOptions;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 
 public class LineFileDocs implements Closeable {
@@ -65,8 +74,33 @@ public class LineFileDocs implements Closeable {
   private final List<FacetGroup> facetGroups;
   private String[] extraFacetFields;
 
+  // If > 0, lines from this ordinal on are never returned:
+  private volatile int docCountLimit = -1;
+
+  // Chunked mode: instead of all threads sharing one reader,
+  // each thread memory-maps its own newline-aligned chunk of
+  // the file, so reading scales with thread count.  Each
+  // line's ID is still its ordinal in the file, so a given
+  // ID always holds the same doc:
+  private final static long CHUNK_BYTES = 4 << 20;    // 4MB
+  private final static int CHUNK_INDEX_VERSION = 0;
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+  private final boolean mmapChunks;
+  private RandomAccessFile chunkFile;
+  private FileChannel channel;
+  // Byte offset and first line ordinal of each chunk, plus
+  // the file length and total line count at [numChunks]:
+  private long[] chunkStarts;
+  private int[] chunkFirstLines;
+  private final AtomicInteger nextChunk = new AtomicInteger();
+
   public LineFileDocs(String path, boolean doRepeat, boolean storeBody, boolean tvsBody, boolean bodyPostingsOffsets, boolean doClone,
                       Map<String,TaxonomyWriter> taxoWriters, List<FacetGroup> facetGroups) throws IOException {
+    this(path, doRepeat, storeBody, tvsBody, bodyPostingsOffsets, doClone, taxoWriters, facetGroups, false);
+  }
+
+  public LineFileDocs(String path, boolean doRepeat, boolean storeBody, boolean tvsBody, boolean bodyPostingsOffsets, boolean doClone,
+                      Map<String,TaxonomyWriter> taxoWriters, List<FacetGroup> facetGroups, boolean mmapChunks) throws IOException {
     this.path = path;
     this.storeBody = storeBody;
     this.tvsBody = tvsBody;
@@ -78,14 +112,201 @@ public class LineFileDocs implements Closeable {
     for(FacetGroup fg : facetGroups) {
       fg.builder = new FacetFields(taxoWriters.get(fg.groupName), new FacetIndexingParams(fg.clp));
     }
+    this.mmapChunks = mmapChunks;
     open();
+    if (mmapChunks) {
+      // We only needed the reader for the header:
+      reader.close();
+      reader = null;
+      openChunks();
+    }
   }
 
   public long getBytesIndexed() {
     return bytesIndexed.get();
   }
 
+  // Stop after the first docCountLimit lines, so exactly
+  // IDs 0 .. docCountLimit-1 are returned even if threads
+  // race (or read separate chunks):
+  public void setDocCountLimit(int docCountLimit) {
+    this.docCountLimit = docCountLimit;
+  }
+
+  private void openChunks() throws IOException {
+    chunkFile = new RandomAccessFile(path, "r");
+    channel = chunkFile.getChannel();
+    final File indexFile = new File(path + ".chunks");
+    final long lastModified = new File(path).lastModified();
+    if (!loadChunkIndex(indexFile, channel.size(), lastModified)) {
+      buildChunkIndex();
+      saveChunkIndex(indexFile, channel.size(), lastModified);
+    }
+    System.out.println("LineFileDocs: " + (chunkStarts.length-1) + " chunks; " + chunkFirstLines[chunkFirstLines.length-1] + " lines");
+  }
+
+  // Splits the file into chunks of about CHUNK_BYTES, each
+  // ending on a newline, counting lines as we go:
+  private void buildChunkIndex() throws IOException {
+    final long t0 = System.nanoTime();
+    final long fileLength = channel.size();
+
+    // Skip the header line, if any:
+    long dataStart = 0;
+    final byte[] header = "FIELDS_HEADER_INDICATOR".getBytes("UTF-8");
+    if (fileLength >= header.length) {
+      final ByteBuffer first = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileLength, 1 << 16));
+      boolean isHeader = true;
+      for(int i=0;i<header.length;i++) {
+        if (first.get(i) != header[i]) {
+          isHeader = false;
+          break;
+        }
+      }
+      if (isHeader) {
+        while (dataStart < first.limit() && first.get((int) dataStart) != '\n') {
+          dataStart++;
+        }
+        dataStart++;
+      }
+    }
+
+    long[] starts = new long[16];
+    int[] firstLines = new int[16];
+    int numChunks = 1;
+    starts[0] = dataStart;
+    int lineCount = 0;
+    long nextBoundary = dataStart + CHUNK_BYTES;
+    boolean endsWithNewline = true;
+
+    // Map in 1GB slices, since one mapping can't exceed 2GB:
+    final long sliceBytes = 1L << 30;
+    for(long sliceStart=dataStart;sliceStart<fileLength;sliceStart+=sliceBytes) {
+      final int sliceLength = (int) Math.min(sliceBytes, fileLength - sliceStart);
+      final ByteBuffer slice = channel.map(FileChannel.MapMode.READ_ONLY, sliceStart, sliceLength);
+      for(int i=0;i<sliceLength;i++) {
+        if (slice.get(i) == '\n') {
+          lineCount++;
+          final long lineEnd = sliceStart + i + 1;
+          if (lineEnd >= nextBoundary && lineEnd < fileLength) {
+            if (numChunks == starts.length) {
+              starts = ArrayUtil.grow(starts, numChunks+1);
+              firstLines = ArrayUtil.grow(firstLines, numChunks+1);
+            }
+            starts[numChunks] = lineEnd;
+            firstLines[numChunks] = lineCount;
+            numChunks++;
+            nextBoundary = lineEnd + CHUNK_BYTES;
+          }
+        }
+      }
+      endsWithNewline = slice.get(sliceLength-1) == '\n';
+    }
+    if (!endsWithNewline) {
+      // Last line has no trailing newline:
+      lineCount++;
+    }
+
+    chunkStarts = Arrays.copyOf(starts, numChunks+1);
+    chunkFirstLines = Arrays.copyOf(firstLines, numChunks+1);
+    chunkStarts[numChunks] = fileLength;
+    chunkFirstLines[numChunks] = lineCount;
+    System.out.println("LineFileDocs: built chunk index in " + ((System.nanoTime()-t0)/1000000) + " msec");
+  }
+
+  // Reuses <path>.chunks from a previous run, if it matches
+  // the file:
+  private boolean loadChunkIndex(File indexFile, long fileLength, long lastModified) throws IOException {
+    if (!indexFile.exists()) {
+      return false;
+    }
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+    try {
+      if (in.readInt() != CHUNK_INDEX_VERSION ||
+          in.readLong() != fileLength ||
+          in.readLong() != lastModified ||
+          in.readLong() != CHUNK_BYTES) {
+        return false;
+      }
+      final int numChunks = in.readInt();
+      chunkStarts = new long[numChunks+1];
+      chunkFirstLines = new int[numChunks+1];
+      for(int i=0;i<=numChunks;i++) {
+        chunkStarts[i] = in.readLong();
+        chunkFirstLines[i] = in.readInt();
+      }
+      return true;
+    } finally {
+      in.close();
+    }
+  }
+
+  private void saveChunkIndex(File indexFile, long fileLength, long lastModified) {
+    try {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+      try {
+        out.writeInt(CHUNK_INDEX_VERSION);
+        out.writeLong(fileLength);
+        out.writeLong(lastModified);
+        out.writeLong(CHUNK_BYTES);
+        out.writeInt(chunkStarts.length-1);
+        for(int i=0;i<chunkStarts.length;i++) {
+          out.writeLong(chunkStarts[i]);
+          out.writeInt(chunkFirstLines[i]);
+        }
+      } finally {
+        out.close();
+      }
+    } catch (IOException ioe) {
+      // Not fatal: we just rebuild it next time
+      System.out.println("LineFileDocs: failed to save chunk index " + indexFile + ": " + ioe);
+    }
+  }
+
+  // Chunked mode: returns the next line from this thread's
+  // chunk, mapping the next unclaimed chunk once it's used
+  // up, or null if there are no more; state.chunkLineID is
+  // the returned line's ID:
+  private String nextChunkLine(ReadState state) throws IOException {
+    while (state.chunk == null || !state.chunk.hasRemaining()) {
+      final int numChunks = chunkStarts.length-1;
+      final int claim = nextChunk.getAndIncrement();
+      if (claim >= numChunks && !doRepeat) {
+        state.chunk = null;
+        return null;
+      }
+      final int chunk = claim % numChunks;
+      state.nextChunkLineID = (claim / numChunks) * chunkFirstLines[numChunks] + chunkFirstLines[chunk];
+      state.chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStarts[chunk], chunkStarts[chunk+1] - chunkStarts[chunk]);
+    }
+
+    final ByteBuffer chunk = state.chunk;
+    int length = 0;
+    while (chunk.hasRemaining()) {
+      final byte b = chunk.get();
+      if (b == '\n') {
+        break;
+      }
+      if (length == state.lineBytes.length) {
+        state.lineBytes = ArrayUtil.grow(state.lineBytes, length+1);
+      }
+      state.lineBytes[length++] = b;
+    }
+    if (length > 0 && state.lineBytes[length-1] == '\r') {
+      length--;
+    }
+    state.chunkLineID = state.nextChunkLineID++;
+    return new String(state.lineBytes, 0, length, UTF8);
+  }
+
   private void open() throws IOException {
+    if (isBinary(path)) {
+      if (mmapChunks) {
+        throw new IllegalArgumentException("chunked mode only works with text line docs files");
+      }
+      openBinary();
+      return;
+    }
     InputStream is = new FileInputStream(path);
     reader = new BufferedReader(new InputStreamReader(is, "UTF-8"), BUFFER_SIZE);
     String firstLine = reader.readLine();
@@ -96,30 +317,7 @@ public class LineFileDocs implements Closeable {
       }
       if (taxoWriters != null) {
         String[] fields = firstLine.split("\t");
-        if (fields.length > 4) {
-          extraFacetFields = Arrays.copyOfRange(fields, 4, fields.length);
-          System.out.println("Additional facet fields: " + Arrays.toString(extraFacetFields));
-
-          List<String> extraFacetFieldsList = Arrays.asList(extraFacetFields);
-
-          // Verify facet groups now:
-          for(FacetGroup fg : facetGroups) {
-            for(String field : fg.fields) {
-              if (!field.equals("Date") && !extraFacetFieldsList.contains(field)) {
-                throw new IllegalArgumentException("facet field \"" + field + "\" is not recognized");
-              }
-            }
-          }
-        } else {
-          // Verify facet groups now:
-          for(FacetGroup fg : facetGroups) {
-            for(String field : fg.fields) {
-              if (!field.equals("Date")) {
-                throw new IllegalArgumentException("facet field \"" + field + "\" is not recognized");
-              }
-            }
-          }
-        }
+        setExtraFacetFields(fields.length > 4 ? Arrays.copyOfRange(fields, 4, fields.length) : null);
       }
       // Skip header
     } else {
@@ -130,18 +328,127 @@ public class LineFileDocs implements Closeable {
     }
   }
 
+  private void setExtraFacetFields(String[] fields) {
+    if (fields != null && fields.length > 0) {
+      extraFacetFields = fields;
+      System.out.println("Additional facet fields: " + Arrays.toString(extraFacetFields));
+
+      List<String> extraFacetFieldsList = Arrays.asList(extraFacetFields);
+
+      // Verify facet groups now:
+      for(FacetGroup fg : facetGroups) {
+        for(String field : fg.fields) {
+          if (!field.equals("Date") && !extraFacetFieldsList.contains(field)) {
+            throw new IllegalArgumentException("facet field \"" + field + "\" is not recognized");
+          }
+        }
+      }
+    } else {
+      // Verify facet groups now:
+      for(FacetGroup fg : facetGroups) {
+        for(String field : fg.fields) {
+          if (!field.equals("Date")) {
+            throw new IllegalArgumentException("facet field \"" + field + "\" is not recognized");
+          }
+        }
+      }
+    }
+  }
+
+  // Binary line docs, written by ConvertLineDocs: each doc
+  // is pre-split into length-prefixed UTF-8 fields, with the
+  // date already parsed, so indexing doesn't pay for tab
+  // splitting and date parsing.  Format (big-endian):
+  //
+  //   int BINARY_MAGIC, int BINARY_VERSION
+  //   time zone ID the dates were parsed in (writeUTF)
+  //   int numExtraFields, then each extra field's name (writeUTF)
+  //   per doc:
+  //     int docLength (bytes, not counting itself)
+  //     int titleLength, title bytes
+  //     int dateLength, date bytes
+  //     long date (epoch msec)
+  //     int seconds of day
+  //     int bodyLength, body bytes
+  //     per extra field: int length, bytes
+  final static int BINARY_MAGIC = 0x4c464442;
+  // Version 0 files may have wrong dates on days where DST
+  // starts at midnight, so they must be reconverted:
+  final static int BINARY_VERSION = 1;
+
+  private DataInputStream binaryIn;
+
+  static boolean isBinary(String path) throws IOException {
+    final DataInputStream in = new DataInputStream(new FileInputStream(path));
+    try {
+      return in.readInt() == BINARY_MAGIC;
+    } catch (EOFException eofe) {
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  private void openBinary() throws IOException {
+    binaryIn = new DataInputStream(new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE));
+    binaryIn.readInt();
+    final int version = binaryIn.readInt();
+    if (version != BINARY_VERSION) {
+      throw new IllegalArgumentException("binary line docs file " + path + " has version " + version + " but expected " + BINARY_VERSION + "; re-run ConvertLineDocs");
+    }
+    // The pre-parsed dates are only what the text file would
+    // give in the same time zone:
+    final String timeZone = binaryIn.readUTF();
+    if (!timeZone.equals(TimeZone.getDefault().getID())) {
+      throw new IllegalArgumentException("binary line docs file " + path + " was converted in time zone " + timeZone +
+                                         " but this JVM's default is " + TimeZone.getDefault().getID() +
+                                         "; run with -Duser.timezone=" + timeZone + " or re-run ConvertLineDocs");
+    }
+    final String[] fields = new String[binaryIn.readInt()];
+    for(int i=0;i<fields.length;i++) {
+      fields[i] = binaryIn.readUTF();
+    }
+    if (taxoWriters != null) {
+      setExtraFacetFields(fields);
+    }
+  }
+
   public synchronized void close() throws IOException {
     if (reader != null) {
       reader.close();
       reader = null;
     }
+    if (binaryIn != null) {
+      binaryIn.close();
+      binaryIn = null;
+    }
+    if (chunkFile != null) {
+      chunkFile.close();
+      chunkFile = null;
+    }
   }
 
+  // Length of every (non-negative) ID:
+  public final static int ID_LENGTH = 6;
+
   public static String intToID(int id) {
-    // Base 36, prefixed with 0s to be length 6 (= 2.2 B)
-    final String s = String.format("%6s", Integer.toString(id, Character.MAX_RADIX)).replace(' ', '0');
-    //System.out.println("fromint: " + id + " -> " + s);
-    return s;
+    if (id < 0) {
+      // Not a valid ID, but keep the old behavior:
+      return String.format("%6s", Integer.toString(id, Character.MAX_RADIX)).replace(' ', '0');
+    }
+    final char[] chars = new char[ID_LENGTH];
+    intToID(id, chars);
+    return new String(chars);
+  }
+
+  // Base 36, prefixed with 0s to be length 6 (= 2.2 B, so
+  // any non-negative int fits), written into chars[0..5]:
+  public static void intToID(int id, char[] chars) {
+    assert id >= 0;
+    for(int i=ID_LENGTH-1;i>=0;i--) {
+      chars[i] = Character.forDigit(id % Character.MAX_RADIX, Character.MAX_RADIX);
+      id /= Character.MAX_RADIX;
+    }
   }
 
   public static int idToInt(BytesRef id) {
@@ -204,9 +511,13 @@ public class LineFileDocs implements Closeable {
     final Field date;
     final LongField dateMSec;
     final IntField timeSec;
-    final SimpleDateFormat dateParser = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
+    // Only used for the Date facet:
     final Calendar dateCal = Calendar.getInstance();
-    final ParsePosition datePos = new ParsePosition(0);
+    final char[] idChars = new char[ID_LENGTH];
+
+    // Not final: IndexPipeline's parse threads swap in their
+    // own, since any of them may fill this doc
+    ReadState readState = new ReadState();
 
     DocState(boolean storeBody, boolean tvsBody, boolean bodyPostingsOffsets) {
       doc = new Document();
@@ -252,6 +563,19 @@ public class LineFileDocs implements Closeable {
     }
   }
 
+  // Per-thread reading and parsing state, kept apart from the
+  // doc's fields:
+  public static final class ReadState {
+    final LineDateParser dateParser = new LineDateParser();
+
+    // Chunked mode: this thread's current chunk (lineBytes is
+    // also the binary mode's read buffer)
+    ByteBuffer chunk;
+    int chunkLineID;
+    int nextChunkLineID;
+    byte[] lineBytes = new byte[4096];
+  }
+
   public DocState newDocState() {
     return new DocState(storeBody, tvsBody, bodyPostingsOffsets);
   }
@@ -279,25 +603,49 @@ public class LineFileDocs implements Closeable {
     return doc2;
   }
 
+  // Date/year/month/day facet path for the doc's date:
+  static CategoryPath dateCategoryPath(Calendar dateCal) {
+    return new CategoryPath("Date",
+                            ""+dateCal.get(Calendar.YEAR),
+                            ""+dateCal.get(Calendar.MONTH),
+                            ""+dateCal.get(Calendar.DAY_OF_MONTH));
+  }
+
   private final ThreadLocal<DocState> threadDocs = new ThreadLocal<DocState>();
 
   private int readCount;
 
-  @SuppressWarnings({"rawtypes", "unchecked"})
   public Document nextDoc(DocState doc) throws IOException {
+    if (binaryIn != null) {
+      return nextBinaryDoc(doc);
+    }
     String line;
     final int myID;
-    synchronized(this) {
-      myID = readCount++;
-      line = reader.readLine();
+    if (mmapChunks) {
+      line = nextChunkLine(doc.readState);
       if (line == null) {
-        if (doRepeat) {
-          close();
-          open();
-          line = reader.readLine();
-        } else {
+        return null;
+      }
+      myID = doc.readState.chunkLineID;
+      if (docCountLimit > 0 && myID >= docCountLimit) {
+        return null;
+      }
+    } else {
+      synchronized(this) {
+        if (docCountLimit > 0 && readCount >= docCountLimit) {
           return null;
         }
+        myID = readCount++;
+        line = reader.readLine();
+        if (line == null) {
+          if (doRepeat) {
+            close();
+            open();
+            line = reader.readLine();
+          } else {
+            return null;
+          }
+        }
       }
     }
 
@@ -322,89 +670,98 @@ public class LineFileDocs implements Closeable {
     doc.titleTokenized.setStringValue(title);
     final String dateString = line.substring(1+spot, spot2);
     doc.date.setStringValue(dateString);
-    doc.id.setStringValue(intToID(myID));
+    intToID(myID, doc.idChars);
+    doc.id.setStringValue(new String(doc.idChars));
 
-    doc.datePos.setIndex(0);
-    final Date date = doc.dateParser.parse(dateString, doc.datePos);
-    if (date == null) {
-      System.out.println("FAILED: " + dateString);
+    if (!doc.readState.dateParser.parse(dateString)) {
+      throw new RuntimeException("line: [" + line + "] has an invalid date \"" + dateString + "\"");
     }
-    doc.dateMSec.setLongValue(date.getTime());
-
-    doc.dateCal.setTime(date);
-    final int sec = doc.dateCal.get(Calendar.HOUR_OF_DAY)*3600 + doc.dateCal.get(Calendar.MINUTE)*60 + doc.dateCal.get(Calendar.SECOND);
-    doc.timeSec.setIntValue(sec);
+    doc.dateMSec.setLongValue(doc.readState.dateParser.msec);
+    doc.timeSec.setIntValue(doc.readState.dateParser.secOfDay);
 
     if (taxoWriters != null) {
+      doc.dateCal.setTimeInMillis(doc.readState.dateParser.msec);
+      addFacets(doc, extraFacetFields != null ? line.substring(spot3+1, line.length()).split("\t") : null);
+    }
 
-      CategoryPath dateCP = new CategoryPath("Date",
-                                             ""+doc.dateCal.get(Calendar.YEAR),
-                                             ""+doc.dateCal.get(Calendar.MONTH),
-                                             ""+doc.dateCal.get(Calendar.DAY_OF_MONTH));
-
-      for(FacetGroup fg : facetGroups) {
-        // TODO: is there a way to "reuse" a field w/ facets
-        doc.doc.removeFields("$" + fg.groupName);
-      
-        List<CategoryPath> paths = new ArrayList<CategoryPath>();
+    if (doClone) {
+      return cloneDoc(doc.doc);
+    } else {
+      return doc.doc;
+    }
+  }
 
-        if (fg.fields.contains("Date")) {
-          paths.add(dateCP);
+  private Document nextBinaryDoc(DocState doc) throws IOException {
+    final ReadState state = doc.readState;
+    final int myID;
+    final int length;
+    synchronized(this) {
+      if (docCountLimit > 0 && readCount >= docCountLimit) {
+        return null;
+      }
+      int len;
+      try {
+        len = binaryIn.readInt();
+      } catch (EOFException eofe) {
+        if (doRepeat) {
+          close();
+          open();
+          len = binaryIn.readInt();
+        } else {
+          return null;
         }
+      }
+      myID = readCount++;
+      if (len > state.lineBytes.length) {
+        state.lineBytes = ArrayUtil.grow(state.lineBytes, len);
+      }
+      binaryIn.readFully(state.lineBytes, 0, len);
+      length = len;
+    }
 
-        if (extraFacetFields != null) {
-          List<CategoryPath>[] cpValues = new List[extraFacetFields.length];
-          String[] extraValues = line.substring(spot3+1, line.length()).split("\t");
-        
-          for(int i=0;i<extraFacetFields.length;i++) {
-            String extraFieldName = extraFacetFields[i];
-            if (fg.fields.contains(extraFieldName)) {
-              if (cpValues[i] == null) {
-                List<CategoryPath> cps;
-                if (extraFieldName.equals("categories")) {
-                  cps = new ArrayList<CategoryPath>();
-                  for (String cat : extraValues[i].split("\\|")) {
-                    // TODO: scary how taxo writer writes a
-                    // second /categories ord for this case ...
-                    if (cat.length() == 0) {
-                      continue;
-                    }
-                    cps.add(new CategoryPath("categories", cat));
-                  }
-                } else if (extraFieldName.equals("characterCount")) {
-
-                  // Make number drilldown hierarchy, so eg 1877
-                  // characters is under
-                  // 0-1M/0-100K/0-10K/1-2K/1800-1900:
-                  List<String> nodes = new ArrayList<String>();
-                  nodes.add(extraFieldName);
-                  int value = Integer.parseInt(extraValues[i]);
-                  int accum = 0;
-                  int base = 1000000;
-                  while(base > 100) {
-                    int factor = (value-accum) / base;
-                    nodes.add(String.format("%d - %d", accum+factor*base, accum+(factor+1)*base));
-                    accum += factor * base;
-                    base /= 10;
-                  }
-                  //System.out.println("value=" + values[i]
-                  //+ "; node=" + nodes);
-                  cps = Collections.singletonList(new CategoryPath(nodes.toArray(new String[nodes.size()])));
-                } else {
-                  cps = Collections.singletonList(new CategoryPath(extraFieldName, extraValues[i]));
-                }
-                cpValues[i] = cps;
-              }
-              paths.addAll(cpValues[i]);
-            }
-          }
-        }
+    final ByteBuffer in = ByteBuffer.wrap(state.lineBytes, 0, length);
+    final byte[] bytes = state.lineBytes;
+
+    int len = in.getInt();
+    final String title = new String(bytes, in.position(), len, UTF8);
+    // Title is already UTF-8:
+    doc.titleDV.setBytesValue(new BytesRef(Arrays.copyOfRange(bytes, in.position(), in.position()+len)));
+    in.position(in.position()+len);
+
+    len = in.getInt();
+    final String dateString = new String(bytes, in.position(), len, UTF8);
+    in.position(in.position()+len);
+
+    final long dateMSec = in.getLong();
+    final int timeSec = in.getInt();
+
+    len = in.getInt();
+    final String body = new String(bytes, in.position(), len, UTF8);
+    in.position(in.position()+len);
 
-        //System.out.println("FG: " + fg.groupName + " add paths=" + paths);
+    bytesIndexed.addAndGet(title.length() + 1 + dateString.length() + 1 + body.length());
 
-        fg.builder.addFields(doc.doc, paths);
-        //System.out.println("  doc=" + doc.doc);
+    doc.body.setStringValue(body);
+    doc.title.setStringValue(title);
+    doc.titleTokenized.setStringValue(title);
+    doc.date.setStringValue(dateString);
+    intToID(myID, doc.idChars);
+    doc.id.setStringValue(new String(doc.idChars));
+    doc.dateMSec.setLongValue(dateMSec);
+    doc.timeSec.setIntValue(timeSec);
+
+    if (taxoWriters != null) {
+      String[] extraValues = null;
+      if (extraFacetFields != null) {
+        extraValues = new String[extraFacetFields.length];
+        for(int i=0;i<extraValues.length;i++) {
+          len = in.getInt();
+          extraValues[i] = new String(bytes, in.position(), len, UTF8);
+          in.position(in.position()+len);
+        }
       }
+      doc.dateCal.setTimeInMillis(dateMSec);
+      addFacets(doc, extraValues);
     }
 
     if (doClone) {
@@ -413,5 +770,75 @@ public class LineFileDocs implements Closeable {
       return doc.doc;
     }
   }
+
+  // Adds each facet group's fields; doc.dateCal must already
+  // hold the doc's date:
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private void addFacets(DocState doc, String[] extraValues) throws IOException {
+    CategoryPath dateCP = dateCategoryPath(doc.dateCal);
+
+    for(FacetGroup fg : facetGroups) {
+      // TODO: is there a way to "reuse" a field w/ facets
+      doc.doc.removeFields("$" + fg.groupName);
+    
+      List<CategoryPath> paths = new ArrayList<CategoryPath>();
+
+      if (fg.fields.contains("Date")) {
+        paths.add(dateCP);
+      }
+
+      if (extraFacetFields != null) {
+        List<CategoryPath>[] cpValues = new List[extraFacetFields.length];
+      
+        for(int i=0;i<extraFacetFields.length;i++) {
+          String extraFieldName = extraFacetFields[i];
+          if (fg.fields.contains(extraFieldName)) {
+            if (cpValues[i] == null) {
+              List<CategoryPath> cps;
+              if (extraFieldName.equals("categories")) {
+                cps = new ArrayList<CategoryPath>();
+                for (String cat : extraValues[i].split("\\|")) {
+                  // TODO: scary how taxo writer writes a
+                  // second /categories ord for this case ...
+                  if (cat.length() == 0) {
+                    continue;
+                  }
+                  cps.add(new CategoryPath("categories", cat));
+                }
+              } else if (extraFieldName.equals("characterCount")) {
+
+                // Make number drilldown hierarchy, so eg 1877
+                // characters is under
+                // 0-1M/0-100K/0-10K/1-2K/1800-1900:
+                List<String> nodes = new ArrayList<String>();
+                nodes.add(extraFieldName);
+                int value = Integer.parseInt(extraValues[i]);
+                int accum = 0;
+                int base = 1000000;
+                while(base > 100) {
+                  int factor = (value-accum) / base;
+                  nodes.add(String.format("%d - %d", accum+factor*base, accum+(factor+1)*base));
+                  accum += factor * base;
+                  base /= 10;
+                }
+                //System.out.println("value=" + values[i]
+                //+ "; node=" + nodes);
+                cps = Collections.singletonList(new CategoryPath(nodes.toArray(new String[nodes.size()])));
+              } else {
+                cps = Collections.singletonList(new CategoryPath(extraFieldName, extraValues[i]));
+              }
+              cpValues[i] = cps;
+            }
+            paths.addAll(cpValues[i]);
+          }
+        }
+      }
+
+      //System.out.println("FG: " + fg.groupName + " add paths=" + paths);
+
+      fg.builder.addFields(doc.doc, paths);
+      //System.out.println("  doc=" + doc.doc);
+    }
+  }
 }
 
@@ -21,6 +21,7 @@ import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -29,19 +30,67 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.util.BytesRef;
 
-// Serves up tasks from locally loaded list:
+// Serves up tasks from locally loaded list.  The run is
+// taskRepeatCount rounds over the loaded tasks, each round
+// in its own shuffled order; task N of the run is a fresh
+// clone of the task at position N % numTasks in round
+// N / numTasks.  Nothing is cloned up front, so memory
+// doesn't grow with the repeat count, and each round's order
+// only depends on -seed.
+//
+// The run's task numbers are split up front into one
+// contiguous range per search thread; each thread takes
+// tasks from the head of its own range, and once that's
+// empty steals from the tail of the other threads' ranges.
+// This way threads don't all contend on one shared cursor.
 class LocalTaskSource implements TaskSource {
-  private final List<Task> tasks;
-  private final AtomicInteger nextTask = new AtomicInteger();
+
+  // Tasks we clone from; never run themselves:
+  private final List<Task> protoTasks;
+  private final int totalTaskCount;
+
+  // Each round's shuffle is seeded from this and the round:
+  private final long shuffleSeed;
+
+  // Per-thread cache of the round it's currently in; only
+  // touched by the owning thread:
+  private static final class RoundOrder {
+    int round = -1;
+    final int[] order;
+
+    RoundOrder(int size) {
+      order = new int[size];
+    }
+  }
+
+  private final RoundOrder[] roundOrders;
+
+  // Spacing between per-thread slots in the arrays below,
+  // so each thread's state sits on its own cache lines:
+  private static final int PAD = 16;
+
+  // Head and tail of each thread's range, packed into one
+  // long (head in the upper 32 bits) so an owner and a
+  // thief can never both take the last task:
+  private final AtomicLongArray ranges;
+  private final int numThreads;
+
+  // Only written by the owning thread:
+  private final long[] ownCounts;
+  private final long[] stolenCounts;
+
+  // Finished tasks go here (if non-null):
+  private final ResultsLog resultsLog;
 
   public LocalTaskSource(IndexState indexState, TaskParser taskParser, String tasksFile,
-                         Random staticRandom, Random random, int numTaskPerCat, int taskRepeatCount, boolean doPKLookup) throws IOException, ParseException {
+                         Random staticRandom, Random random, int numTaskPerCat, int taskRepeatCount, boolean doPKLookup,
+                         int numThreads, ResultsLog resultsLog) throws IOException, ParseException {
 
     final List<Task> loadedTasks = loadTasks(taskParser, tasksFile);
     Collections.shuffle(loadedTasks, staticRandom);
@@ -65,21 +114,29 @@ class LocalTaskSource implements TaskSource {
       }
     }
 
-    tasks = new ArrayList<Task>();
-
-    // Copy the pruned tasks multiple times, shuffling the order each time:
-    for(int iter=0;iter<taskRepeatCount;iter++) {
-      Collections.shuffle(prunedTasks, random);
-      for(Task task : prunedTasks) {
-        tasks.add(task.clone());
-      }
+    protoTasks = prunedTasks;
+    final long count = ((long) taskRepeatCount) * protoTasks.size();
+    if (count > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("too many tasks: " + taskRepeatCount + " repeats * " + protoTasks.size() + " tasks");
     }
-    System.out.println("TASK LEN=" + tasks.size());
-  }
+    totalTaskCount = (int) count;
+    shuffleSeed = random.nextLong();
+    System.out.println("TASK LEN=" + totalTaskCount);
 
-  @Override
-  public List<Task> getAllTasks() {
-    return tasks;
+    this.numThreads = numThreads;
+    this.resultsLog = resultsLog;
+    roundOrders = new RoundOrder[numThreads];
+    for(int threadID=0;threadID<numThreads;threadID++) {
+      roundOrders[threadID] = new RoundOrder(protoTasks.size());
+    }
+    ranges = new AtomicLongArray(numThreads*PAD);
+    ownCounts = new long[numThreads*PAD];
+    stolenCounts = new long[numThreads*PAD];
+    for(int threadID=0;threadID<numThreads;threadID++) {
+      final long start = ((long) threadID) * totalTaskCount / numThreads;
+      final long end = ((long) threadID+1) * totalTaskCount / numThreads;
+      ranges.set(threadID*PAD, (start << 32) | end);
+    }
   }
 
   private static List<Task> pruneTasks(List<Task> tasks, int numTaskPerCat) {
@@ -108,16 +165,97 @@ class LocalTaskSource implements TaskSource {
   }
 
   @Override
-  public Task nextTask() {
-    final int next = nextTask.getAndIncrement();
-    if (next >= tasks.size()) {
-      return null;
+  public Task nextTask(int threadID) {
+    threadID = threadID % numThreads;
+    final int slot = threadID * PAD;
+    int next = takeHead(slot);
+    if (next != -1) {
+      ownCounts[slot]++;
+      return materialize(threadID, next);
+    }
+
+    // Our range is used up: steal from the others
+    for(int i=1;i<numThreads;i++) {
+      next = takeTail(((threadID+i) % numThreads) * PAD);
+      if (next != -1) {
+        stolenCounts[slot]++;
+        return materialize(threadID, next);
+      }
+    }
+
+    return null;
+  }
+
+  // Clones the task for this task number; each number is
+  // handed out exactly once:
+  private Task materialize(int threadID, int taskNumber) {
+    final int round = taskNumber / protoTasks.size();
+    final RoundOrder roundOrder = roundOrders[threadID];
+    if (roundOrder.round != round) {
+      shuffle(roundOrder.order, round);
+      roundOrder.round = round;
+    }
+    return protoTasks.get(roundOrder.order[taskNumber % protoTasks.size()]).clone();
+  }
+
+  // Fisher-Yates shuffle of 0..order.length-1, seeded only
+  // by shuffleSeed and the round, so any thread computes
+  // the same order for a given round:
+  private void shuffle(int[] order, int round) {
+    final Random r = new Random(shuffleSeed ^ (round * 0x9E3779B97F4A7C15L));
+    for(int i=0;i<order.length;i++) {
+      order[i] = i;
+    }
+    for(int i=order.length-1;i>0;i--) {
+      final int j = r.nextInt(i+1);
+      final int x = order[i];
+      order[i] = order[j];
+      order[j] = x;
+    }
+  }
+
+  private int takeHead(int slot) {
+    while (true) {
+      final long range = ranges.get(slot);
+      final int head = (int) (range >>> 32);
+      final int tail = (int) range;
+      if (head >= tail) {
+        return -1;
+      }
+      if (ranges.compareAndSet(slot, range, (((long) head+1) << 32) | tail)) {
+        return head;
+      }
+    }
+  }
+
+  private int takeTail(int slot) {
+    while (true) {
+      final long range = ranges.get(slot);
+      final int head = (int) (range >>> 32);
+      final int tail = (int) range;
+      if (head >= tail) {
+        return -1;
+      }
+      if (ranges.compareAndSet(slot, range, (((long) head) << 32) | (tail-1))) {
+        return tail-1;
+      }
+    }
+  }
+
+  // Only call this once all search threads are done
+  public void printThreadStats(PrintStream out) {
+    out.println("Tasks per thread:");
+    for(int threadID=0;threadID<numThreads;threadID++) {
+      final int slot = threadID * PAD;
+      out.println("  thread " + threadID + ": " + (ownCounts[slot] + stolenCounts[slot]) + " tasks (" + stolenCounts[slot] + " stolen)");
     }
-    return tasks.get(next);
   }
 
   @Override
   public void taskDone(Task task, long queueTimeNS, int toalHitCount) {
+    if (resultsLog != null) {
+      resultsLog.add(task);
+    }
   }
 
   private static List<Task> loadTasks(TaskParser taskParser, String filePath) throws IOException, ParseException {
@@ -83,7 +83,7 @@ public class NRTPerfTest {
 
   public static class IndexThread extends Thread {
     private final LineFileDocs docs;
-    private final double docsPerSec;
+    private final RatePacer pacer;
     private final IndexWriter w;
     private final double runTimeSec;
     private final Random random;
@@ -91,11 +91,12 @@ public class NRTPerfTest {
     private final boolean doUpdate;
     private final LineFileDocs.DocState docState;
 
-    public IndexThread(IndexWriter w, LineFileDocs docs, double docsPerSec, double runTimeSec, Random random, boolean doUpdate) {
+    // pacer is shared by all index threads:
+    public IndexThread(IndexWriter w, LineFileDocs docs, RatePacer pacer, double runTimeSec, Random random, boolean doUpdate) {
       this.w = w;
       this.docs = docs;
       docState = docs.newDocState();
-      this.docsPerSec = docsPerSec;
+      this.pacer = pacer;
       this.runTimeSec = runTimeSec;
       this.random = new Random(random.nextInt());
       this.doUpdate = doUpdate;
@@ -109,6 +110,7 @@ public class NRTPerfTest {
         //System.out.println("IW.maxDoc=" + maxDoc);
         int count = 0;
         while(true) {
+          pacer.acquire();
           count++;
           int maxDoc = w.maxDoc();
           final Document doc = docs.nextDoc(docState);
@@ -123,16 +125,9 @@ public class NRTPerfTest {
           if (docsIndexedByTime != null) {
             docsIndexedByTime[currentQT.get()].incrementAndGet();
           }
-          final long t = System.nanoTime();
-          if (t >= stopNS) {
+          if (System.nanoTime() >= stopNS) {
             break;
           }
-          final long sleepNS = startNS + (long) (1000000000*(count/docsPerSec)) - t;
-          if (sleepNS > 0) {
-            final long sleepMS = sleepNS/1000000;
-            final int sleepNS2 = (int) (sleepNS - sleepMS*1000000);
-            Thread.sleep(sleepMS, sleepNS2);
-          }
         }
         indexedCount = count;
       } catch (Exception e) {
@@ -181,7 +176,11 @@ public class NRTPerfTest {
             final Query query = queries[queryIdx];
             IndexSearcher s = getSearcher();
             try {
+              final long t0 = System.nanoTime();
               final int hitCount = s.search(query, 10).totalHits;
+              if (hiccups != null) {
+                hiccups.recordTask(System.nanoTime() - t0);
+              }
               // Not until we have shuffled line docs file w/ matching IDs
               //if (queryHitCounts != null && hitCount != queryHitCounts[queryIdx]) {
               //throw new RuntimeException("hit counts differ for query=" + query + " expected=" + queryHitCounts[queryIdx] + " actual=" + hitCount);
@@ -207,6 +206,7 @@ public class NRTPerfTest {
   static int statsEverySec;
 
   static Query[] queries;
+  static HiccupRecorder hiccups;
   //static int[] queryHitCounts;                    // only verified if update mode
 
   public static void main(String[] args) throws Exception {
@@ -216,7 +216,9 @@ public class NRTPerfTest {
     final String commit = args[2];
     final String lineDocFile = args[3];
     final long seed = Long.parseLong(args[4]);
-    final double docsPerSec = Double.parseDouble(args[5]);
+    // Aggregate docs/sec, or a rate schedule (see
+    // RatePacer.parseSchedule):
+    final RatePacer.Schedule docsPerSec = RatePacer.parseSchedule(args[5]);
     final double runTimeSec = Double.parseDouble(args[6]);
     final int numSearchThreads = Integer.parseInt(args[7]);
     final int numIndexThreads = Integer.parseInt(args[8]);
@@ -229,6 +231,16 @@ public class NRTPerfTest {
       throw new IllegalArgumentException("mergeMaxWriteMBPerSec must be 0.0 until LUCENE-3202 is done");
     }
 
+    // Optional: record JVM/OS hiccups next to search
+    // latency, every statsEverySec, to this file ("none" to
+    // skip):
+    final String hiccupLog = args.length > 14 && !args[14].equals("none") ? args[14] : null;
+
+    // Optional: how many docs the index threads may add back
+    // to back to catch up after falling behind (default: one
+    // second's worth):
+    final double docsPerSecBurst = args.length > 15 ? Double.parseDouble(args[15]) : 0.0;
+
     final boolean hasProcMemInfo = new File("/proc/meminfo").exists();
 
     System.out.println("DIR=" + dirImpl);
@@ -236,6 +248,7 @@ public class NRTPerfTest {
     System.out.println("Commit=" + commit);
     System.out.println("LineDocs=" + lineDocFile);
     System.out.println("Docs/sec=" + docsPerSec);
+    System.out.println("Docs/sec burst=" + (docsPerSecBurst > 0 ? ""+docsPerSecBurst : "default"));
     System.out.println("Run time sec=" + runTimeSec);
     System.out.println("NumSearchThreads=" + numSearchThreads);
     System.out.println("NumIndexThreads=" + numIndexThreads);
@@ -335,11 +348,13 @@ public class NRTPerfTest {
         @Override
         public void warm(AtomicReader reader) throws IOException {
           final long t0 = System.currentTimeMillis();
+          final Object event = JFREvents.INSTANCE.beginWarm();
           //System.out.println("DO WARM: " + reader);
           IndexSearcher s = new IndexSearcher(reader);
           for(Query query : queries) {
             s.search(query, 10);
           }
+          JFREvents.INSTANCE.endWarm(event, reader);
 
           // Warm terms dict & index:
           /*
@@ -375,9 +390,11 @@ public class NRTPerfTest {
     final IndexWriter w = new IndexWriter(dir, iwc);
     //w.setInfoStream(System.out);
 
+    final RatePacer pacer = new RatePacer(docsPerSec, docsPerSecBurst);
+    pacer.start();
     final IndexThread[] indexThreads = new IndexThread[numIndexThreads];
     for(int i=0;i<numIndexThreads;i++) {
-      indexThreads[i] = new IndexThread(w, docs, docsPerSec/numIndexThreads, runTimeSec, random, doUpdates);
+      indexThreads[i] = new IndexThread(w, docs, pacer, runTimeSec, random, doUpdates);
       indexThreads[i].setPriority(Thread.currentThread().getPriority()+1);
       indexThreads[i].setName("IndexThread " + i);
       indexThreads[i].start();
@@ -404,6 +421,12 @@ public class NRTPerfTest {
     }
     */
 
+    if (hiccupLog != null) {
+      System.out.println("Hiccups log=" + hiccupLog);
+      hiccups = new HiccupRecorder(1.0, statsEverySec, hiccupLog);
+      hiccups.start();
+    }
+
     final SearchThread[] searchThreads = new SearchThread[numSearchThreads];
 
     final long startNS = System.nanoTime();
@@ -498,7 +521,8 @@ public class NRTPerfTest {
           } else {
             other = "";
           }
-          System.out.println("QT " + (prevQT-1) + " searches=" + searchesByTime[(prevQT-1)].get() + " docs=" + docsIndexedByTime[(prevQT-1)].get() + " reopens=" + reopensByTime[(prevQT-1)].get() + other);
+          final long targetDocs = (long) docsPerSec.docsBetween((prevQT-1)*statsEverySec, prevQT*statsEverySec);
+          System.out.println("QT " + (prevQT-1) + " searches=" + searchesByTime[(prevQT-1)].get() + " docs=" + docsIndexedByTime[(prevQT-1)].get() + " reopens=" + reopensByTime[(prevQT-1)].get() + other + " targetDocs=" + targetDocs + " backlog=" + pacer.getBacklogDocs());
         }
       }
       Thread.sleep(25);
@@ -507,6 +531,7 @@ public class NRTPerfTest {
     for(IndexThread t : indexThreads) {
       t.join();
     }
+    pacer.printStats(System.out);
 
     for(SearchThread t : searchThreads) {
       t.join();
@@ -514,6 +539,12 @@ public class NRTPerfTest {
 
     reopenThread.join();
 
+    if (hiccups != null) {
+      hiccups.finish();
+      hiccups.printSummary(System.out);
+      hiccups.write(hiccupLog);
+    }
+
     System.out.println("By time:");
     for(int i=0;i<searchesByTime.length-2;i++) {
       System.out.println("  " + (i*statsEverySec) + " searches=" + searchesByTime[i].get() + " docs=" + docsIndexedByTime[i].get() + " reopens=" + reopensByTime[i]);
@@ -0,0 +1,228 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token bucket shared by all indexing threads, so the
+// aggregate ingest rate holds even when some threads stall
+// (e.g. on a flush): whichever thread is free takes the next
+// token.  It's lock-free: the state is just the time the next
+// token is due, advanced with CAS.  If all threads fall
+// behind, up to burst docs are let through immediately to
+// catch up; any backlog beyond that is dropped (and counted)
+// rather than released as one huge burst.
+//
+// The rate comes from a Schedule so it can change over the
+// run; see parseSchedule.
+class RatePacer {
+
+  private final Schedule schedule;
+  private final double burst;
+
+  // Time the next token is due:
+  private final AtomicLong nextNS = new AtomicLong();
+
+  private volatile long startNS;
+
+  // Stats:
+  private final AtomicLong permits = new AtomicLong();
+  private final AtomicLong droppedDocs = new AtomicLong();
+  private final AtomicLong maxBacklogDocs = new AtomicLong();
+
+  // burst: how many docs may be released back to back to
+  // catch up after a stall; <= 0 means one second's worth at
+  // the starting rate
+  public RatePacer(Schedule schedule, double burst) {
+    this.schedule = schedule;
+    if (burst <= 0.0) {
+      burst = Math.max(1.0, schedule.rateAt(0.0));
+    }
+    this.burst = burst;
+  }
+
+  public Schedule getSchedule() {
+    return schedule;
+  }
+
+  // Call once before the first acquire:
+  public void start() {
+    startNS = System.nanoTime();
+    nextNS.set(startNS);
+  }
+
+  // Blocks until the calling thread may index one doc:
+  public void acquire() throws InterruptedException {
+    long now;
+    long slotNS;
+    while (true) {
+      now = System.nanoTime();
+      final long intervalNS = (long) (1000000000/schedule.rateAt((now - startNS)/1000000000.0));
+      final long toleranceNS = (long) ((burst-1) * intervalNS);
+      final long next = nextNS.get();
+      slotNS = Math.max(next, now - toleranceNS);
+      if (nextNS.compareAndSet(next, slotNS + intervalNS)) {
+        if (slotNS > next) {
+          droppedDocs.addAndGet((slotNS - next) / intervalNS);
+        }
+        final long backlog = (now - next) / intervalNS;
+        if (backlog > 0) {
+          updateMax(maxBacklogDocs, backlog);
+        }
+        break;
+      }
+    }
+    permits.incrementAndGet();
+
+    final long sleepNS = slotNS - now;
+    if (sleepNS > 0) {
+      final long sleepMS = sleepNS/1000000;
+      final int sleepNS2 = (int) (sleepNS - sleepMS*1000000);
+      Thread.sleep(sleepMS, sleepNS2);
+    }
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    while (true) {
+      final long current = max.get();
+      if (value <= current || max.compareAndSet(current, value)) {
+        return;
+      }
+    }
+  }
+
+  // How many docs behind schedule the pacer is right now:
+  public long getBacklogDocs() {
+    final long now = System.nanoTime();
+    final long behindNS = now - nextNS.get();
+    if (behindNS <= 0) {
+      return 0;
+    }
+    final double rate = schedule.rateAt((now - startNS)/1000000000.0);
+    return (long) (behindNS * rate / 1000000000.0);
+  }
+
+  public long getPermits() {
+    return permits.get();
+  }
+
+  public void printStats(PrintStream out) {
+    final double elapsedSec = (System.nanoTime() - startNS)/1000000000.0;
+    final double target = schedule.docsBetween(0.0, elapsedSec);
+    final long achieved = permits.get();
+    out.println(String.format(Locale.ENGLISH,
+                              "RatePacer: schedule %s; burst %.0f; %.1f sec: target %.0f docs, achieved %d docs (%.1f%%; %.1f docs/sec); max backlog %d docs; dropped %d docs",
+                              schedule, burst, elapsedSec, target, achieved,
+                              target > 0 ? 100.0*achieved/target : 0.0,
+                              elapsedSec > 0 ? achieved/elapsedSec : 0.0,
+                              maxBacklogDocs.get(), droppedDocs.get()));
+  }
+
+  // Target docs/sec over time; must always be > 0:
+  static abstract class Schedule {
+    public abstract double rateAt(double sec);
+
+    // Docs the schedule asks for between the two times:
+    public double docsBetween(double fromSec, double toSec) {
+      final int steps = 1000;
+      final double stepSec = (toSec - fromSec) / steps;
+      double docs = 0.0;
+      for(int i=0;i<steps;i++) {
+        docs += rateAt(fromSec + (i+0.5)*stepSec) * stepSec;
+      }
+      return docs;
+    }
+  }
+
+  public static Schedule constant(final double rate) {
+    checkRate(rate);
+    return new Schedule() {
+      @Override
+      public double rateAt(double sec) {
+        return rate;
+      }
+
+      @Override
+      public String toString() {
+        return "" + rate;
+      }
+    };
+  }
+
+  // Parses a schedule:
+  //
+  //   <rate>                      constant docs/sec
+  //   ramp:<from>:<to>:<sec>      linear from -> to over sec, then holds to
+  //   square:<rate1>:<rate2>:<sec> rate1 for sec, then rate2 for sec, repeating
+  public static Schedule parseSchedule(String spec) {
+    final String[] parts = spec.split(":");
+    if (parts.length == 1) {
+      return constant(Double.parseDouble(spec));
+    }
+    if (parts.length != 4) {
+      throw new IllegalArgumentException("could not parse rate schedule \"" + spec + "\"");
+    }
+    final double rate1 = Double.parseDouble(parts[1]);
+    final double rate2 = Double.parseDouble(parts[2]);
+    final double sec = Double.parseDouble(parts[3]);
+    checkRate(rate1);
+    checkRate(rate2);
+    if (sec <= 0.0) {
+      throw new IllegalArgumentException("schedule period must be > 0.0 (got: " + sec + ")");
+    }
+    final String desc = spec;
+    if (parts[0].equals("ramp")) {
+      return new Schedule() {
+        @Override
+        public double rateAt(double t) {
+          if (t >= sec) {
+            return rate2;
+          }
+          return rate1 + (rate2 - rate1) * Math.max(0.0, t) / sec;
+        }
+
+        @Override
+        public String toString() {
+          return desc;
+        }
+      };
+    } else if (parts[0].equals("square")) {
+      return new Schedule() {
+        @Override
+        public double rateAt(double t) {
+          return ((long) (Math.max(0.0, t) / sec)) % 2 == 0 ? rate1 : rate2;
+        }
+
+        @Override
+        public String toString() {
+          return desc;
+        }
+      };
+    } else {
+      throw new IllegalArgumentException("unknown rate schedule \"" + parts[0] + "\"; expected ramp or square");
+    }
+  }
+
+  private static void checkRate(double rate) {
+    if (rate <= 0.0) {
+      throw new IllegalArgumentException("rate must be > 0.0 (got: " + rate + ")");
+    }
+  }
+}
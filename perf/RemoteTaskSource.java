@@ -18,139 +18,588 @@ package perf;
  */
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
-// Serves up tasks from remote client
+import org.apache.lucene.util.BytesRef;
+
+// Serves up tasks from remote clients.  A single selector
+// thread accepts any number of client connections and reads
+// their requests; each task's result is written back on the
+// connection it arrived on, so several load generators can
+// drive one SearchPerfTest process at once.
+//
+// Wire protocol (all ints/longs big-endian):
+//
+//   request:  int length, long requestID, length-8 bytes of
+//             UTF-8 task text (same syntax as .tasks files);
+//             the text END// asks the server to finish
+//
+//   response: long requestID, byte status, int totalHitCount,
+//             long queueTimeNS, long serviceTimeNS
+//
+// status is one of the STATUS_* constants below; tasks that
+// were dropped by admission control were not run, and have
+// totalHitCount and serviceTimeNS 0.
+//
+// Clients may pipeline any number of requests on one
+// connection; responses come back in completion order, so
+// the client matches them up by requestID.
 class RemoteTaskSource extends Thread implements TaskSource {
-  private final ServerSocket serverSocket;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
   private final TaskParser taskParser;
   private final int numThreads;
-  private static final int MAX_BYTES = 70;
+
+  // Refuse (and disconnect) requests larger than this:
+  private static final int MAX_REQUEST_BYTES = 1 << 20;
+
+  static final int RESPONSE_BYTES = 8 + 1 + 4 + 8 + 8;
+
+  // Task ran, within its deadline (if any):
+  static final byte STATUS_OK = 0;
+
+  // Task ran, but queue + service time exceeded its
+  // deadline:
+  static final byte STATUS_LATE = 1;
+
+  // Task was rejected on arrival because the queue was full:
+  static final byte STATUS_REJECTED = 2;
+
+  // Task waited in the queue past its deadline and was
+  // dropped without running:
+  static final byte STATUS_EXPIRED = 3;
+
+  // Task was shed by CoDel:
+  static final byte STATUS_SHED = 4;
+
+  // Max number of distinct parsed tasks we cache per
+  // connection:
+  private static final int MAX_CACHED_TASKS = 10000;
 
   // nocommit maybe fair=true?
-  private final BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(100000);
+  private final BlockingQueue<Task> queue;
+
+  // If > 0, requests arriving while this many tasks are
+  // already queued are rejected immediately; else the
+  // selector stops reading from a client whose task doesn't
+  // fit, until the queue has room:
+  private final int maxQueueDepth;
+
+  // If > 0, tasks that waited longer than this in the queue
+  // are dropped, and tasks that finish later than this are
+  // reported as late:
+  private final long deadlineNS;
+
+  // Non-null if CoDel shedding is enabled:
+  private final CoDel codel;
+
+  private final AtomicLong lateCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong expiredCount = new AtomicLong();
+  private final AtomicLong shedCount = new AtomicLong();
+
+  // Connections that have responses waiting for their
+  // socket to become writable; the selector thread picks
+  // these up and registers OP_WRITE:
+  private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+
+  // Connections we stopped reading from because the queue
+  // was full; only touched by the selector thread:
+  private final List<Connection> pausedReads = new ArrayList<Connection>();
+
+  // True while pausedReads is non-empty, so search threads
+  // wake the selector when they take a task:
+  private volatile boolean readsPaused;
+
+  private int connectionCount;
+  private boolean ended;
 
   public RemoteTaskSource(String iface, int port, int numThreads, TaskParser taskParser) throws IOException {
+    this(iface, port, numThreads, taskParser, 0, 0.0, 0.0, 0.0);
+  }
+
+  // maxQueueDepth, deadlineMS and codelTargetMS are
+  // disabled when <= 0:
+  public RemoteTaskSource(String iface, int port, int numThreads, TaskParser taskParser,
+                          int maxQueueDepth, double deadlineMS, double codelTargetMS, double codelIntervalMS) throws IOException {
     this.numThreads = numThreads;
     this.taskParser = taskParser;
-    serverSocket = new ServerSocket(port, 50, InetAddress.getByName(iface));
-    System.out.println("Waiting for client connection on interface " + iface + ", port " + port);
+    this.maxQueueDepth = maxQueueDepth;
+    // Leave room for the END_TASKs, so end() never blocks:
+    queue = new ArrayBlockingQueue<Task>((maxQueueDepth > 0 ? maxQueueDepth : 100000) + numThreads);
+    deadlineNS = (long) (deadlineMS * 1000000);
+    if (codelTargetMS > 0) {
+      if (codelIntervalMS <= 0) {
+        throw new IllegalArgumentException("codelIntervalMS must be > 0 (got: " + codelIntervalMS + ")");
+      }
+      codel = new CoDel((long) (codelTargetMS * 1000000), (long) (codelIntervalMS * 1000000));
+    } else {
+      codel = null;
+    }
+    System.out.println("Admission control: maxQueueDepth=" + (maxQueueDepth > 0 ? maxQueueDepth : "unlimited") +
+                       " deadline=" + (deadlineNS > 0 ? deadlineMS + " msec" : "none") +
+                       " codel=" + (codel != null ? "target " + codelTargetMS + " msec, interval " + codelIntervalMS + " msec" : "off"));
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(iface), port), 50);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    System.out.println("Waiting for client connections on interface " + iface + ", port " + port);
     setPriority(Thread.MAX_PRIORITY);
     setDaemon(true);
     start();
   }
-  
-  @Override
-  public List<Task> getAllTasks() {
-    return null;
-  }
 
-  private volatile OutputStream out;
+  // One connected client:
+  final class Connection {
+    final int id;
+    private final SocketChannel channel;
+    private final SelectionKey key;
 
-  @Override
-  public void run() {
-    // Start server socket and accept only one client
-    // connection, which will feed us the requests:
+    // Only touched by the selector thread:
+    private ByteBuffer readBuffer = ByteBuffer.allocate(16384);
+    private final BytesRef scratch = new BytesRef();
 
-    newClient: while(true) {
-      Socket socket = null;
-      InputStream in;
-      try {
-        System.out.println("  ready for client...");
-        socket = serverSocket.accept();
-        in = socket.getInputStream();
-        out = socket.getOutputStream();
-      } catch (IOException ioe) {
-        if (socket != null) {
+    // Task that didn't fit in the queue; while this is set
+    // we don't read from the socket.  Only touched by the
+    // selector thread:
+    private Task blockedTask;
+
+    // Load generators send the same task text over and
+    // over, so we parse each distinct request once and then
+    // clone the parsed task:
+    private final Map<BytesRef,Task> parsedTasks = new HashMap<BytesRef,Task>();
+
+    // Responses are appended here by search threads and
+    // drained to the socket; guarded by this:
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(1024*RESPONSE_BYTES);
+    private boolean writePending;
+
+    volatile boolean closed;
+
+    Connection(int id, SocketChannel channel) throws IOException {
+      this.id = id;
+      this.channel = channel;
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    // Called only from the selector thread
+    void read() throws IOException {
+      final int inc = channel.read(readBuffer);
+      if (inc == -1) {
+        // Connection closed
+        close();
+        return;
+      }
+      processRequests();
+      if (blockedTask != null) {
+        // Queue is full: stop reading until it has room
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        pausedReads.add(this);
+        readsPaused = true;
+      }
+    }
+
+    // Called only from the selector thread; returns true
+    // once the blocked task (and any requests buffered after
+    // it) are queued and we are reading again:
+    boolean resume() throws IOException {
+      if (!offer(blockedTask)) {
+        return false;
+      }
+      blockedTask = null;
+      processRequests();
+      if (blockedTask != null) {
+        return false;
+      }
+      key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+      return true;
+    }
+
+    private void processRequests() throws IOException {
+      readBuffer.flip();
+      while (blockedTask == null && readBuffer.remaining() >= 4) {
+        final int pos = readBuffer.position();
+        final int length = readBuffer.getInt(pos);
+        if (length < 8 || length > MAX_REQUEST_BYTES) {
+          throw new IOException("invalid request length " + length);
+        }
+        if (readBuffer.remaining() < 4 + length) {
+          // Partial request
+          break;
+        }
+        final long requestID = readBuffer.getLong(pos + 4);
+        scratch.bytes = readBuffer.array();
+        scratch.offset = readBuffer.arrayOffset() + pos + 12;
+        scratch.length = length - 8;
+        readBuffer.position(pos + 4 + length);
+        handleRequest(requestID);
+      }
+      readBuffer.compact();
+      if (blockedTask == null && !readBuffer.hasRemaining()) {
+        // A single request is larger than our buffer:
+        final ByteBuffer newBuffer = ByteBuffer.allocate(2*readBuffer.capacity());
+        readBuffer.flip();
+        newBuffer.put(readBuffer);
+        readBuffer = newBuffer;
+      }
+    }
+
+    private void handleRequest(long requestID) throws UnsupportedEncodingException {
+      Task task = parsedTasks.get(scratch);
+      if (task == null) {
+        final String s = new String(scratch.bytes, scratch.offset, scratch.length, "UTF-8");
+        if (s.startsWith("END//")) {
+          end();
+          return;
+        }
+        try {
+          task = taskParser.parseOneTask(s);
+        } catch (RuntimeException re) {
+          re.printStackTrace();
+          return;
+        }
+        if (parsedTasks.size() >= MAX_CACHED_TASKS) {
+          parsedTasks.clear();
+        }
+        parsedTasks.put(BytesRef.deepCopyOf(scratch), task);
+      }
+      task = task.clone();
+      task.recvTimeNS = System.nanoTime();
+      task.taskID = requestID;
+      task.connection = this;
+      JFREvents.INSTANCE.taskQueued(task);
+      if (maxQueueDepth > 0) {
+        if (queue.size() >= maxQueueDepth || !queue.offer(task)) {
+          rejectedCount.incrementAndGet();
           try {
-            socket.close();
-          } catch (IOException ioe2) {
+            sendResult(requestID, STATUS_REJECTED, 0, 0, 0);
+          } catch (IOException ioe) {
+            System.out.println("Ignore IOException on client " + id + ": " + ioe);
+            close();
           }
         }
-        continue;
+      } else if (!offer(task)) {
+        blockedTask = task;
+      }
+      //System.out.println("S: add " + task + "; size=" + queue.size());
+    }
+
+    // Called from search threads
+    synchronized void sendResult(long requestID, byte status, int totalHitCount, long queueTimeNS, long serviceTimeNS) throws IOException {
+      if (closed) {
+        return;
+      }
+      if (writeBuffer.remaining() < RESPONSE_BYTES) {
+        // Client isn't keeping up with its responses:
+        final ByteBuffer newBuffer = ByteBuffer.allocate(2*writeBuffer.capacity());
+        writeBuffer.flip();
+        newBuffer.put(writeBuffer);
+        writeBuffer = newBuffer;
+      }
+      writeBuffer.putLong(requestID);
+      writeBuffer.put(status);
+      writeBuffer.putInt(totalHitCount);
+      writeBuffer.putLong(queueTimeNS);
+      writeBuffer.putLong(serviceTimeNS);
+
+      if (!writePending) {
+        write();
+        if (writeBuffer.position() > 0) {
+          // Socket is backed up: let the selector thread
+          // finish writing once it's writable again:
+          writePending = true;
+          pendingWrites.add(this);
+          selector.wakeup();
+        }
       }
-      System.out.println("    connection!");
+    }
 
+    private void write() throws IOException {
+      writeBuffer.flip();
       try {
-        final byte[] buffer = new byte[MAX_BYTES];
-        int taskCount = 0;
-        while(true) {
-          int upto = 0;
-          while(upto < buffer.length) {
-            final int inc;
-            try {
-              inc = in.read(buffer, upto, MAX_BYTES-upto);
-            } catch (java.net.SocketException se) {
-              socket.close();
-              queue.clear();
-              out = null;
-              continue newClient;
-            }
-            if (inc >= 0) {
-              upto += inc;
-            } else {
-              // Connection closed
-              socket.close();
-              queue.clear();
-              out = null;
-              continue newClient;
-            }
+        channel.write(writeBuffer);
+      } finally {
+        writeBuffer.compact();
+      }
+    }
+
+    // Called only from the selector thread
+    synchronized void flush() throws IOException {
+      write();
+      if (writeBuffer.position() == 0) {
+        writePending = false;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+    }
+
+    synchronized void close() {
+      if (!closed) {
+        closed = true;
+        key.cancel();
+        try {
+          channel.close();
+        } catch (IOException ioe) {
+        }
+        System.out.println("    client " + id + " disconnected");
+      }
+    }
+  }
+
+  // Only the selector thread adds to the queue, so if there
+  // is room here the offer succeeds; the last numThreads
+  // slots are kept for the END_TASKs:
+  private boolean offer(Task task) {
+    return queue.remainingCapacity() > numThreads && queue.offer(task);
+  }
+
+  private void end() {
+    if (!ended) {
+      ended = true;
+      for(int threadID=0;threadID<numThreads;threadID++) {
+        queue.add(Task.END_TASK);
+      }
+    }
+  }
+
+  // Called only from the selector thread
+  private void resumeReads() {
+    final Iterator<Connection> it = pausedReads.iterator();
+    while (it.hasNext()) {
+      final Connection conn = it.next();
+      try {
+        if (conn.closed || conn.resume()) {
+          it.remove();
+        }
+      } catch (CancelledKeyException cke) {
+        // Client disconnected in the meantime
+        it.remove();
+      } catch (IOException ioe) {
+        System.out.println("Ignore IOException on client " + conn.id + ": " + ioe);
+        conn.close();
+        it.remove();
+      }
+    }
+    if (pausedReads.isEmpty()) {
+      readsPaused = false;
+    }
+  }
+
+  @Override
+  public void run() {
+    System.out.println("  ready for clients...");
+    try {
+      while(true) {
+        if (!pausedReads.isEmpty()) {
+          // readsPaused is already set, so a search thread
+          // taking a task after this attempt will wake up the
+          // select below:
+          resumeReads();
+        }
+        selector.select();
+
+        Connection pending;
+        while ((pending = pendingWrites.poll()) != null) {
+          try {
+            pending.key.interestOps(pending.key.interestOps() | SelectionKey.OP_WRITE);
+          } catch (CancelledKeyException cke) {
+            // Client disconnected in the meantime
           }
+        }
 
-          String s = new String(buffer, "UTF-8");
-          if (s.startsWith("END//")) {
-            for(int threadID=0;threadID<numThreads;threadID++) {
-              queue.put(Task.END_TASK);
+        final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          final SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            final SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+              try {
+                new Connection(connectionCount++, channel);
+                System.out.println("    connection from " + channel.socket().getRemoteSocketAddress() + "!");
+              } catch (IOException ioe) {
+                try {
+                  channel.close();
+                } catch (IOException ioe2) {
+                }
+              }
             }
-            break;
+            continue;
           }
-          Task task;
+
+          final Connection conn = (Connection) key.attachment();
           try {
-            task = taskParser.parseOneTask(s);
-          } catch (RuntimeException re) {
-            re.printStackTrace();
-            continue;
+            if (key.isReadable()) {
+              conn.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              conn.flush();
+            }
+          } catch (IOException ioe) {
+            System.out.println("Ignore IOException on client " + conn.id + ": " + ioe);
+            conn.close();
           }
-          task.recvTimeNS = System.nanoTime();
-          task.taskID = taskCount++;
-          queue.put(task);
-          //System.out.println("S: add " + s + "; size=" + queue.size());
         }
-      } catch (Exception e) {
-        throw new RuntimeException(e);
       }
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Controlled Delay (Nichols & Jacobson): once tasks have
+  // waited longer than target for a full interval, start
+  // dropping them, and drop more often (interval/sqrt(count))
+  // until the queue delay falls back below target.  Unlike a
+  // fixed deadline this keeps the standing queue short while
+  // still absorbing bursts.
+  static final class CoDel {
+    private final long targetNS;
+    private final long intervalNS;
+
+    private long firstAboveTimeNS;
+    private long dropNextNS;
+    private int count;
+    private int lastCount;
+    private boolean dropping;
+
+    CoDel(long targetNS, long intervalNS) {
+      this.targetNS = targetNS;
+      this.intervalNS = intervalNS;
+    }
+
+    private long controlLaw(long t) {
+      return t + (long) (intervalNS / Math.sqrt(count));
+    }
+
+    // Called for each dequeued task; returns true if the
+    // task should be dropped:
+    synchronized boolean shouldDrop(long sojournNS, long nowNS) {
+      boolean okToDrop = false;
+      if (sojournNS < targetNS) {
+        firstAboveTimeNS = 0;
+      } else if (firstAboveTimeNS == 0) {
+        firstAboveTimeNS = nowNS + intervalNS;
+      } else if (nowNS - firstAboveTimeNS >= 0) {
+        okToDrop = true;
+      }
+
+      if (dropping) {
+        if (!okToDrop) {
+          dropping = false;
+        } else if (nowNS - dropNextNS >= 0) {
+          count++;
+          dropNextNS = controlLaw(dropNextNS);
+          return true;
+        }
+      } else if (okToDrop) {
+        dropping = true;
+        // If we were dropping recently, resume close to the
+        // previous drop rate:
+        final int delta = count - lastCount;
+        if (delta > 1 && nowNS - dropNextNS < 16*intervalNS) {
+          count = delta;
+        } else {
+          count = 1;
+        }
+        lastCount = count;
+        dropNextNS = controlLaw(nowNS);
+        return true;
+      }
+      return false;
     }
   }
 
   @Override
-  public Task nextTask() throws InterruptedException {
-    return queue.take();
+  public Task nextTask(int threadID) throws InterruptedException {
+    while (true) {
+      final Task task = queue.take();
+      if (readsPaused) {
+        // Let the selector queue what it's holding back:
+        selector.wakeup();
+      }
+      final Connection conn = task.connection;
+      if (conn == null) {
+        // END_TASK
+        return task;
+      }
+      if (conn.closed) {
+        // Client went away; don't bother running its tasks:
+        continue;
+      }
+      if (deadlineNS > 0 || codel != null) {
+        final long nowNS = System.nanoTime();
+        final long queueTimeNS = nowNS - task.recvTimeNS;
+        if (deadlineNS > 0 && queueTimeNS > deadlineNS) {
+          expiredCount.incrementAndGet();
+          drop(task, STATUS_EXPIRED, queueTimeNS);
+          continue;
+        }
+        if (codel != null && codel.shouldDrop(queueTimeNS, nowNS)) {
+          shedCount.incrementAndGet();
+          drop(task, STATUS_SHED, queueTimeNS);
+          continue;
+        }
+      }
+      return task;
+    }
+  }
+
+  private void drop(Task task, byte status, long queueTimeNS) {
+    final Connection conn = task.connection;
+    try {
+      conn.sendResult(task.taskID, status, 0, queueTimeNS, 0);
+    } catch (IOException ioe) {
+      System.out.println("Ignore IOException: " + ioe);
+      conn.close();
+    }
   }
 
   @Override
   public void taskDone(Task task, long queueTimeNS, int totalHitCount) throws IOException {
-    if (out != null) {
+    final Connection conn = task.connection;
+    if (conn != null && !conn.closed) {
+      byte status = STATUS_OK;
+      if (deadlineNS > 0 && queueTimeNS + task.runTimeNanos > deadlineNS) {
+        lateCount.incrementAndGet();
+        status = STATUS_LATE;
+      }
       try {
-        // NOTE: can cause NPE here (we are not sync'd)
-        // but caller will print & ignore it...
-        out.write(String.format(Locale.ENGLISH, "%8d:%9d:%11.1f", task.taskID, totalHitCount, queueTimeNS/1000000.0).getBytes("UTF-8"));
-      } catch (SocketException se) {
-        System.out.println("Ignore SocketException: " + se);
-        queue.clear();
-      } catch (UnsupportedEncodingException uee) {
-        throw new RuntimeException(uee);
+        conn.sendResult(task.taskID, status, totalHitCount, queueTimeNS, task.runTimeNanos);
+      } catch (IOException ioe) {
+        System.out.println("Ignore IOException: " + ioe);
+        conn.close();
       }
     }
   }
-}
 
+  public void printStats(PrintStream out) {
+    out.println("Admission control: " + rejectedCount.get() + " rejected (queue full), " +
+                expiredCount.get() + " expired (past deadline), " +
+                shedCount.get() + " shed (CoDel), " +
+                lateCount.get() + " late");
+  }
+}
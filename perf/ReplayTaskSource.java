@@ -0,0 +1,180 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+// Replays a timestamped query log, issuing each task at
+// the time it originally arrived (optionally sped up or
+// slowed down), so the run sees the real traffic's bursts
+// and lulls.  Each line of the log is:
+//
+//   <arrival offset in msec><TAB><task, same syntax as .tasks files>
+//
+// Offsets need not start at 0 but must not go backwards;
+// blank lines and lines starting with # are ignored.  The
+// log is streamed, so it can be arbitrarily large.
+//
+// Each task's receive time is its scheduled time, not when
+// it was actually dispatched, so queue time and latency
+// count any time the harness spent falling behind.  The
+// search threads record that latency in their own
+// TaskLatencies, so nothing is shared per task here.
+class ReplayTaskSource extends Thread implements TaskSource {
+
+  private final TaskParser taskParser;
+  private final String logFile;
+  private final double speed;
+  private final int numThreads;
+
+  private final BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(100000);
+
+  // Only touched by the replay thread:
+  private long dispatchedCount;
+  private long lateDispatchCount;
+  private long maxDispatchLagNS;
+
+  // speed 2.0 replays twice as fast as the original traffic:
+  public ReplayTaskSource(TaskParser taskParser, String logFile, double speed, int numThreads) {
+    if (speed <= 0.0) {
+      throw new IllegalArgumentException("speed must be > 0.0 (got: " + speed + ")");
+    }
+    this.taskParser = taskParser;
+    this.logFile = logFile;
+    this.speed = speed;
+    this.numThreads = numThreads;
+    setName("ReplayTaskSource");
+    setDaemon(true);
+  }
+
+  @Override
+  public void run() {
+    try {
+      replay();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    } finally {
+      for(int threadID=0;threadID<numThreads;threadID++) {
+        try {
+          queue.put(Task.END_TASK);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+  }
+
+  private void replay() throws Exception {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "UTF-8"), 1 << 16);
+    try {
+      final long startNS = System.nanoTime();
+      double firstOffsetMS = Double.NaN;
+      double lastOffsetMS = Double.NEGATIVE_INFINITY;
+      int lineCount = 0;
+      while (true) {
+        String line = reader.readLine();
+        if (line == null) {
+          break;
+        }
+        lineCount++;
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        final int idx = line.indexOf('\t');
+        if (idx == -1) {
+          throw new IllegalArgumentException(logFile + " line " + lineCount + ": expected <offsetMS><TAB><task>; got: " + line);
+        }
+        final double offsetMS = Double.parseDouble(line.substring(0, idx));
+        if (offsetMS < lastOffsetMS) {
+          throw new IllegalArgumentException(logFile + " line " + lineCount + ": offset " + offsetMS + " is before previous offset " + lastOffsetMS);
+        }
+        lastOffsetMS = offsetMS;
+        if (Double.isNaN(firstOffsetMS)) {
+          firstOffsetMS = offsetMS;
+        }
+
+        // Parse before waiting, so parsing doesn't delay
+        // the dispatch:
+        final Task task = taskParser.parseOneTask(line.substring(1+idx).trim());
+        final long scheduledNS = startNS + (long) ((offsetMS - firstOffsetMS) * 1000000 / speed);
+
+        while (true) {
+          final long waitNS = scheduledNS - System.nanoTime();
+          if (waitNS <= 0) {
+            break;
+          }
+          LockSupport.parkNanos(waitNS);
+        }
+
+        task.recvTimeNS = scheduledNS;
+        JFREvents.INSTANCE.taskQueued(task);
+        queue.put(task);
+
+        final long lagNS = System.nanoTime() - scheduledNS;
+        if (lagNS > 1000000) {
+          lateDispatchCount++;
+        }
+        maxDispatchLagNS = Math.max(maxDispatchLagNS, lagNS);
+        dispatchedCount++;
+      }
+      System.out.println(String.format(Locale.ENGLISH, "Replay: dispatched %d tasks in %.1f sec; %d dispatched > 1 msec late; max dispatch lag %.1f msec",
+                                       dispatchedCount, (System.nanoTime() - startNS)/1000000000.0,
+                                       lateDispatchCount, maxDispatchLagNS/1000000.0));
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Override
+  public Task nextTask(int threadID) throws InterruptedException {
+    return queue.take();
+  }
+
+  @Override
+  public void taskDone(Task task, long queueTimeNS, int totalHitCount) {
+  }
+
+  // Latency from each task's scheduled time until it
+  // finished, from the merged search thread latencies:
+  public static void printSummary(PrintStream out, TaskLatencies latencies) {
+    out.println("Replay latency by category (from scheduled time):");
+    for(Map.Entry<String,Histogram> ent : latencies.getLatencyByCategory().entrySet()) {
+      out.println("  " + ent.getKey() + ": " + HistogramUtil.summarize(ent.getValue()));
+    }
+  }
+
+  // Writes <prefix>.<category>.replay.hgrm for each category:
+  public static void write(String prefix, TaskLatencies latencies) throws IOException {
+    for(Map.Entry<String,Histogram> ent : latencies.getLatencyByCategory().entrySet()) {
+      HistogramUtil.writeHistogram(ent.getValue(), prefix + "." + ent.getKey() + ".replay.hgrm");
+    }
+  }
+}
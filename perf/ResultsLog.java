@@ -0,0 +1,203 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Writes each finished task to a compact binary log from a
+// background thread, as soon as the task is done, so the
+// harness never has to hold all tasks (and their hits)
+// until the run ends.  The first result for each unique
+// task is written in full; repeats only record their run
+// time and thread, once their checksum has been verified
+// against that first result.  If checksums aren't verified,
+// repeats may have different results, so every result is
+// written in full.
+//
+// Format (all ints/longs big-endian): int MAGIC, then any
+// number of records, each starting with a type byte:
+//
+//   'T'  int key, int length, length bytes of UTF-8 text:
+//        the "TASK: ..." line, then the task's results
+//   'R'  int key, long runTimeNanos, int threadID,
+//        long cpuTimeNanos, long allocatedBytes (-1 if not
+//        measured)
+//   'H'  long heap bytes in use at the end of the run
+//
+// benchUtil.py's parseResults turns this back into the old
+// text log.
+class ResultsLog extends Thread {
+
+  static final int MAGIC = 0x52534c32;
+
+  private final BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(10000);
+  private final DataOutputStream out;
+  private final IndexState indexState;
+  private final boolean verifyChecksum;
+
+  private static final class FirstResult {
+    final int key;
+    final Task task;
+
+    FirstResult(int key, Task task) {
+      this.key = key;
+      this.task = task;
+    }
+  }
+
+  // Only touched by the writer thread:
+  private final Map<Task,FirstResult> firstResults = new HashMap<Task,FirstResult>();
+  private final Map<Class<?>,Boolean> comparable = new HashMap<Class<?>,Boolean>();
+  private int nextKey;
+  private long taskCount;
+
+  private volatile RuntimeException failure;
+
+  public ResultsLog(String path, IndexState indexState, boolean verifyChecksum) throws IOException {
+    this.indexState = indexState;
+    this.verifyChecksum = verifyChecksum;
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+    out.writeInt(MAGIC);
+    setName("ResultsLog");
+    setDaemon(true);
+    start();
+  }
+
+  // Called from search threads
+  public void add(Task task) {
+    if (failure != null) {
+      throw failure;
+    }
+    try {
+      queue.put(task);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ie);
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        final Task task = queue.take();
+        if (task == Task.END_TASK) {
+          break;
+        }
+        if (failure == null) {
+          // Keep draining after a failure so search threads
+          // don't block:
+          try {
+            write(task);
+          } catch (RuntimeException re) {
+            failure = re;
+          } catch (IOException ioe) {
+            failure = new RuntimeException(ioe);
+          }
+        }
+      }
+    } catch (InterruptedException ie) {
+      failure = new RuntimeException(ie);
+    }
+  }
+
+  private void write(Task task) throws IOException {
+    final boolean shareResults = verifyChecksum && isComparable(task);
+    final FirstResult first = shareResults ? firstResults.get(task) : null;
+    if (first == null) {
+      final int key = nextKey++;
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final PrintStream ps = new PrintStream(bytes, false, "UTF-8");
+      ps.println("TASK: " + task);
+      task.printResults(ps, indexState);
+      ps.flush();
+      out.writeByte('T');
+      out.writeInt(key);
+      out.writeInt(bytes.size());
+      bytes.writeTo(out);
+      if (shareResults) {
+        firstResults.put(task, new FirstResult(key, task));
+      }
+      writeResult(key, task);
+    } else {
+      if (task.checksum() != first.task.checksum()) {
+        System.out.println("\nTASK:");
+        task.printResults(System.out, indexState);
+        System.out.println("\nOTHER TASK:");
+        first.task.printResults(System.out, indexState);
+        throw new RuntimeException("task " + task + " hit different checksums: " + task.checksum() + " vs " + first.task.checksum() + " other=" + first.task);
+      }
+      writeResult(first.key, task);
+    }
+    taskCount++;
+  }
+
+  private void writeResult(int key, Task task) throws IOException {
+    out.writeByte('R');
+    out.writeInt(key);
+    out.writeLong(task.runTimeNanos);
+    out.writeInt(task.threadID);
+    out.writeLong(task.cpuTimeNanos);
+    out.writeLong(task.allocatedBytes);
+  }
+
+  // Tasks that don't override equals (e.g. PKLookupTask) are
+  // never repeats of one another, so don't hold onto them:
+  private boolean isComparable(Task task) {
+    Boolean v = comparable.get(task.getClass());
+    if (v == null) {
+      try {
+        v = task.getClass().getMethod("equals", Object.class).getDeclaringClass() != Object.class;
+      } catch (NoSuchMethodException nsme) {
+        throw new RuntimeException(nsme);
+      }
+      comparable.put(task.getClass(), v);
+    }
+    return v.booleanValue();
+  }
+
+  // Waits for all added tasks to be written; throws the
+  // first failure (e.g., a checksum mismatch) if any:
+  public void finish() throws InterruptedException {
+    queue.put(Task.END_TASK);
+    join();
+    if (failure != null) {
+      throw failure;
+    }
+    System.out.println("Results log: " + taskCount + " tasks; " + nextKey + " written in full");
+  }
+
+  // Only call after finish:
+  public void writeHeap(long heapBytes) throws IOException {
+    out.writeByte('H');
+    out.writeLong(heapBytes);
+  }
+
+  public void close() throws IOException {
+    out.close();
+  }
+}
@@ -25,7 +25,6 @@ package perf;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -35,6 +34,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
@@ -207,6 +207,20 @@ public class SearchPerfTest {
     final boolean doPKLookup = args.getFlag("-pk");
     final int topN = args.getInt("-topN");
     final boolean doStoredLoads = args.getFlag("-loadStoredFields");
+    // Run each task on its own virtual thread (Java 21+),
+    // with at most searchThreadCount running at once:
+    final boolean useVirtualThreads = args.getFlag("-virtualThreads");
+    // If > 0, each query also searches its index slices
+    // concurrently on a shared pool of this many threads:
+    final int searchConcurrency = Integer.parseInt(args.getString("-searchConcurrency", "0"));
+    final ExecutorService searchExecutor;
+    if (searchConcurrency > 0) {
+      ConcurrentSearcher.setSliceSizes(Integer.parseInt(args.getString("-maxDocsPerSlice", "250000")),
+                                       Integer.parseInt(args.getString("-maxSegmentsPerSlice", "5")));
+      searchExecutor = ConcurrentSearcher.newExecutor(searchConcurrency);
+    } else {
+      searchExecutor = null;
+    }
 
     // Used to choose which random subset of tasks we will
     // run, to generate the PKLookup tasks, and to generate
@@ -227,6 +241,8 @@ public class SearchPerfTest {
     System.out.println("Analyzer " + analyzer);
     System.out.println("Similarity " + similarity);
     System.out.println("Search thread count " + searchThreadCount);
+    System.out.println("Search threads are " + (useVirtualThreads ? "virtual" : "platform"));
+    System.out.println("Intra-query concurrency " + (searchConcurrency > 0 ? searchConcurrency + " threads" : "off"));
     System.out.println("JVM " + (Constants.JRE_IS_64BIT ? "is" : "is not") + " 64bit");
     System.out.println("Pointer is " + RamUsageEstimator.NUM_BYTES_OBJECT_REF + " bytes");
  
@@ -248,6 +264,7 @@ public class SearchPerfTest {
 
     final ReferenceManager<IndexSearcher> mgr;
     final IndexWriter writer;
+    final RatePacer pacer;
     final Directory dir;
 
     final String commit = args.getString("-commit");
@@ -269,7 +286,11 @@ public class SearchPerfTest {
       // TODO: factor out & share this CL processing w/ Indexer
       final int indexThreadCount = args.getInt("-indexThreadCount");
       final String lineDocsFile = args.getString("-lineDocsFile");
-      final float docsPerSecPerThread = args.getFloat("-docsPerSecPerThread");
+      // Either a fixed per-thread rate, or an aggregate rate
+      // schedule (see RatePacer.parseSchedule):
+      final String docsPerSecSchedule = args.getString("-docsPerSecSchedule", null);
+      final float docsPerSecPerThread = docsPerSecSchedule == null ? args.getFloat("-docsPerSecPerThread") : -1.0f;
+      final double docsPerSecBurst = Double.parseDouble(args.getString("-docsPerSecBurst", "0"));
       final float reopenEverySec = args.getFloat("-reopenEverySec");
       final boolean storeBody = args.getFlag("-store");
       final boolean tvsBody = args.getFlag("-tvs");
@@ -335,9 +356,11 @@ public class SearchPerfTest {
           @Override
           public void warm(AtomicReader reader) throws IOException {
             final long t0 = System.currentTimeMillis();
+            final Object event = JFREvents.INSTANCE.beginWarm();
             //System.out.println("DO WARM: " + reader);
             IndexSearcher s = new IndexSearcher(reader);
             s.search(new TermQuery(new Term(fieldName, "united")), 10);
+            JFREvents.INSTANCE.endWarm(event, reader);
             final long t1 = System.currentTimeMillis();
             System.out.println("warm segment=" + reader + " numDocs=" + reader.numDocs() + ": took " + (t1-t0) + " msec");
           }
@@ -346,18 +369,30 @@ public class SearchPerfTest {
       writer = new IndexWriter(dir, iwc);
       System.out.println("Initial writer.maxDoc()=" + writer.maxDoc());
 
+      if (docsPerSecSchedule != null) {
+        pacer = new RatePacer(RatePacer.parseSchedule(docsPerSecSchedule), docsPerSecBurst);
+      } else if (docsPerSecPerThread > 0) {
+        pacer = new RatePacer(RatePacer.constant(docsPerSecPerThread * indexThreadCount), docsPerSecBurst);
+      } else {
+        pacer = null;
+      }
+      final IndexThreads.Options indexOptions = new IndexThreads.Options();
+      indexOptions.storeBody = storeBody;
+      indexOptions.tvsBody = tvsBody;
       // TODO: add -nrtBodyPostingsOffsets instead of
       // hardwired false:
-      IndexThreads threads = new IndexThreads(new Random(17), writer, null, null, lineDocsFile, storeBody, tvsBody,
-                                              false,
-                                              indexThreadCount, -1,
-                                              false, false, true, docsPerSecPerThread, cloneDocs);
+      indexOptions.bodyPostingsOffsets = false;
+      indexOptions.numThreads = indexThreadCount;
+      indexOptions.doUpdate = true;
+      indexOptions.cloneDocs = cloneDocs;
+      indexOptions.pacer = pacer;
+      IndexThreads threads = new IndexThreads(new Random(17), new IndexWriter[] {writer}, null, null, lineDocsFile, indexOptions);
       threads.start();
 
       mgr = new SearcherManager(writer, true, new SearcherFactory() {
           @Override
           public IndexSearcher newSearcher(IndexReader reader) {
-            IndexSearcher s = new IndexSearcher(reader);
+            IndexSearcher s = newIndexSearcher(reader, searchExecutor);
             s.setSimilarity(sim);
             return s;
           }
@@ -376,8 +411,15 @@ public class SearchPerfTest {
                 final long nextReopenMS = startMS + (reopenCount * reopenEveryMS);
                 final long sleepMS = Math.max(100, nextReopenMS - System.currentTimeMillis());
                 Thread.sleep(sleepMS);
-                mgr.maybeRefresh();
+                final Object event = JFREvents.INSTANCE.beginRefresh();
+                final boolean refreshed = mgr.maybeRefresh();
+                JFREvents.INSTANCE.endRefresh(event, refreshed);
                 reopenCount++;
+                if (pacer != null) {
+                  System.out.println(String.format(Locale.ENGLISH, "%.1fs: pacer: %d docs; backlog %d docs",
+                                                   (System.currentTimeMillis() - startMS)/1000.0,
+                                                   pacer.getPermits(), pacer.getBacklogDocs()));
+                }
                 IndexSearcher s = mgr.acquire();
                 try {
                   if (ramDir != null) {
@@ -411,6 +453,7 @@ public class SearchPerfTest {
     } else {
       dir = dir0;
       writer = null;
+      pacer = null;
       final DirectoryReader reader;
       if (commit != null && commit.length() > 0) {
         System.out.println("Opening searcher on commit=" + commit);
@@ -420,7 +463,7 @@ public class SearchPerfTest {
         // open last commit
         reader = DirectoryReader.open(dir);
       }
-      IndexSearcher s = new IndexSearcher(reader);
+      IndexSearcher s = newIndexSearcher(reader, searchExecutor);
       s.setSimilarity(sim);
       
       mgr = new SingleIndexSearcher(s);
@@ -491,6 +534,10 @@ public class SearchPerfTest {
 
     final TaskSource tasks;
 
+    // Local tasks' results stream to the log as each task
+    // finishes:
+    final ResultsLog resultsLog = new ResultsLog(logFile, indexState, verifyCheckSum);
+
     if (tasksFile.startsWith("server:")) {
       int idx = tasksFile.indexOf(':', 8);
       if (idx == -1) {
@@ -498,70 +545,129 @@ public class SearchPerfTest {
       }
       String iface = tasksFile.substring(7, idx);
       int port = Integer.valueOf(tasksFile.substring(1+idx));
-      RemoteTaskSource remoteTasks = new RemoteTaskSource(iface, port, searchThreadCount, taskParser);
+      // Admission control; all off by default:
+      final int maxQueueDepth = Integer.parseInt(args.getString("-maxQueueDepth", "0"));
+      final double taskDeadlineMS = Double.parseDouble(args.getString("-taskDeadlineMS", "0"));
+      final double codelTargetMS = Double.parseDouble(args.getString("-codelTargetMS", "0"));
+      final double codelIntervalMS = Double.parseDouble(args.getString("-codelIntervalMS", "100"));
+      RemoteTaskSource remoteTasks = new RemoteTaskSource(iface, port, searchThreadCount, taskParser,
+                                                          maxQueueDepth, taskDeadlineMS, codelTargetMS, codelIntervalMS);
 
       // nocommit must stop thread?
       tasks = remoteTasks;
+    } else if (tasksFile.startsWith("replay:")) {
+      // Replay a timestamped query log at its original
+      // arrival times, sped up by -replaySpeed:
+      final double replaySpeed = Double.parseDouble(args.getString("-replaySpeed", "1.0"));
+      tasks = new ReplayTaskSource(taskParser, tasksFile.substring(7), replaySpeed, searchThreadCount);
+      System.out.println("Replay log " + tasksFile.substring(7) + " at speed " + replaySpeed);
     } else {
       // Load the tasks from a file:
       final int taskRepeatCount = args.getInt("-taskRepeatCount");
       final int numTaskPerCat = args.getInt("-tasksPerCat");
-      tasks = new LocalTaskSource(indexState, taskParser, tasksFile, staticRandom, random, numTaskPerCat, taskRepeatCount, doPKLookup);
+      // Results are printed as tasks finish, so map docIDs
+      // to IDs up front:
+      indexState.setDocIDToID();
+      tasks = new LocalTaskSource(indexState, taskParser, tasksFile, staticRandom, random, numTaskPerCat, taskRepeatCount, doPKLookup,
+                                  searchThreadCount, resultsLog);
       System.out.println("Task repeat count " + taskRepeatCount);
       System.out.println("Tasks file " + tasksFile);
       System.out.println("Num task per cat " + numTaskPerCat);
     }
 
+    // Optionally warm up until each category's throughput
+    // is steady, then reset latencies and measure for
+    // -measureSec (or -measureTaskCount tasks):
+    final SteadyStateTaskSource steadyState;
+    if (args.getFlag("-warmupUntilSteady")) {
+      steadyState = new SteadyStateTaskSource(tasks,
+                                              Double.parseDouble(args.getString("-warmupSampleSec", "1.0")),
+                                              Integer.parseInt(args.getString("-warmupWindow", "10")),
+                                              Double.parseDouble(args.getString("-warmupMaxCV", "0.05")),
+                                              Double.parseDouble(args.getString("-warmupMaxSec", "300")),
+                                              Double.parseDouble(args.getString("-measureSec", "60")),
+                                              Long.parseLong(args.getString("-measureTaskCount", "0")));
+    } else {
+      steadyState = null;
+    }
+
+    // Optionally record JVM/OS hiccups next to task
+    // latency, every -hiccupIntervalSec, in <log>.hiccups.txt:
+    final double hiccupIntervalSec = Double.parseDouble(args.getString("-hiccupIntervalSec", "0"));
+    final HiccupRecorder hiccups;
+    if (hiccupIntervalSec > 0.0) {
+      hiccups = new HiccupRecorder(Double.parseDouble(args.getString("-hiccupResolutionMS", "1.0")), hiccupIntervalSec, logFile + ".hiccups.txt");
+      hiccups.start();
+    } else {
+      hiccups = null;
+    }
+
     args.check();
 
     // Evil respeller:
     //spellChecker.setMinPrefix(0);
     //spellChecker.setMaxInspections(1024);
-    final TaskThreads taskThreads = new TaskThreads(tasks, indexState, searchThreadCount);
+    final TaskThreads taskThreads = new TaskThreads(steadyState != null ? steadyState : tasks, indexState, searchThreadCount, useVirtualThreads, hiccups);
     Thread.sleep(10);
 
     final long startNanos = System.nanoTime();
     taskThreads.start();
+    if (steadyState != null) {
+      steadyState.setTaskThreads(taskThreads);
+      steadyState.start();
+    }
+    if (tasks instanceof ReplayTaskSource) {
+      // Replay clock starts now:
+      ((ReplayTaskSource) tasks).start();
+    }
     taskThreads.finish();
     final long endNanos = System.nanoTime();
 
     System.out.println("\n" + ((endNanos - startNanos)/1000000.0) + " msec total");
 
-    final List<Task> allTasks = tasks.getAllTasks();
-
-    PrintStream out = new PrintStream(logFile);
+    if (hiccups != null) {
+      hiccups.finish();
+      hiccups.printSummary(System.out);
+      hiccups.write(logFile);
+    }
 
-    if (allTasks != null) {
-      // Tasks were local: verify checksums:
+    if (searchExecutor != null) {
+      searchExecutor.shutdown();
+    }
 
-      indexState.setDocIDToID();
+    final double measuredSec;
+    if (steadyState != null) {
+      steadyState.printSummary(System.out);
+    }
+    if (steadyState != null && steadyState.isMeasuring()) {
+      measuredSec = steadyState.getMeasuredSec();
+    } else {
+      measuredSec = (endNanos - startNanos)/1000000000.0;
+    }
 
-      final Map<Task,Task> tasksSeen = new HashMap<Task,Task>();
-
-      out.println("\nResults for " + allTasks.size() + " tasks:");
-      for(final Task task : allTasks) {
-        if (verifyCheckSum) {
-          final Task other = tasksSeen.get(task);
-          if (other != null) {
-            if (task.checksum() != other.checksum()) {
-              System.out.println("\nTASK:");
-              task.printResults(System.out, indexState);
-              System.out.println("\nOTHER TASK:");
-              other.printResults(System.out, indexState);
-              throw new RuntimeException("task " + task + " hit different checksums: " + task.checksum() + " vs " + other.checksum() + " other=" + other);
-            }
-          } else {
-            tasksSeen.put(task, task);
-          }
-        }
-        out.println("\nTASK: " + task);
-        out.println("  " + (task.runTimeNanos/1000000.0) + " msec");
-        out.println("  thread " + task.threadID);
-        task.printResults(out, indexState);
-      }
+    if (tasks instanceof LocalTaskSource) {
+      ((LocalTaskSource) tasks).printThreadStats(System.out);
+    }
+    if (tasks instanceof RemoteTaskSource) {
+      ((RemoteTaskSource) tasks).printStats(System.out);
+    }
 
-      allTasks.clear();
+    // Per-category latency percentiles, written next to
+    // the log as <log>.<category>.service.hgrm:
+    final TaskLatencies latencies = taskThreads.getLatencies();
+    if (tasks instanceof ReplayTaskSource) {
+      ReplayTaskSource.printSummary(System.out, latencies);
+      ReplayTaskSource.write(logFile, latencies);
     }
+    System.out.println("Latency by category:");
+    latencies.printSummary(System.out);
+    System.out.println("Latency vs throughput by category (intra-query concurrency " + searchConcurrency + "):");
+    latencies.printThroughput(System.out, measuredSec);
+    latencies.write(logFile);
+
+    // Waits for the last results to be written, and throws
+    // if any task's checksum differed from its first run:
+    resultsLog.finish();
 
     mgr.close();
 
@@ -569,6 +675,10 @@ public class SearchPerfTest {
       tr.close();
     }
 
+    if (pacer != null) {
+      pacer.printStats(System.out);
+    }
+
     if (writer != null) {
       // Don't actually commit any index changes:
       writer.rollback();
@@ -590,9 +700,17 @@ public class SearchPerfTest {
         usedMem2 = usedMem1;
         usedMem1 = usedMemory(runtime);
       }
-      out.println("\nHEAP: " + usedMemory(runtime));
+      resultsLog.writeHeap(usedMemory(runtime));
+    }
+    resultsLog.close();
+  }
+
+  private static IndexSearcher newIndexSearcher(IndexReader reader, ExecutorService executor) {
+    if (executor == null) {
+      return new IndexSearcher(reader);
+    } else {
+      return new ConcurrentSearcher(reader, executor);
     }
-    out.close();
   }
 
   private static long usedMemory(Runtime runtime) {
@@ -0,0 +1,676 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+// Open-loop load generator for RemoteTaskSource (the Java
+// equivalent of sendTasks.py).  Tasks are issued on a fixed
+// schedule (Poisson or fixed interval) at the target QPS,
+// regardless of how quickly the server answers, and each
+// task's latency is measured from the time it was supposed
+// to be sent, not when it actually was, so a stalled client
+// or server doesn't hide its own latency (coordinated
+// omission).
+//
+// With -qps sweep, it instead searches for the highest QPS
+// the server sustains: each step runs for -sweepStepSec at
+// a fixed QPS, and passes if p99 latency is within
+// -sloP99MS, the server's queue time isn't climbing, and
+// it dropped at most -sweepMaxDropPct percent of requests.
+// The QPS steps up until a step fails and then bisects
+// down to the knee.
+//
+// java -cp .:$LUCENE_HOME/build/core/classes/java:/l/HdrHistogram/src perf.SendTasks -tasks wikimedium500.tasks -host localhost -port 7777 -qps 200 -tasksPerCat 10 -runTimeSec 60 -hgrm /tmp/latency
+// java -cp .:$LUCENE_HOME/build/core/classes/java:/l/HdrHistogram/src perf.SendTasks -tasks wikimedium500.tasks -host localhost -port 7777 -qps sweep -sloP99MS 100 -sweepStartQPS 50 -sweepStepSec 30 -tasksPerCat 10
+
+public class SendTasks {
+
+  // Max number of requests we allow in flight before we
+  // give up: at that point the server is hopelessly behind
+  private static final int MAX_OUTSTANDING = 1 << 20;
+
+  // Per-request state, indexed by requestID & (MAX_OUTSTANDING-1):
+  private final AtomicLongArray intendedStartNS = new AtomicLongArray(MAX_OUTSTANDING);
+  private final AtomicLongArray actualStartNS = new AtomicLongArray(MAX_OUTSTANDING);
+  private final int[] taskIndex = new int[MAX_OUTSTANDING];
+
+  private final List<String> categories;
+  private final int[] taskCategory;
+  private final byte[][] taskBytes;
+  private final ClientConnection[] connections;
+
+  private final AtomicLong completed = new AtomicLong();
+
+  // Requests the server dropped (rejected, expired or shed)
+  // without running them, and requests it ran but finished
+  // past their deadline; see RemoteTaskSource.STATUS_*:
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong late = new AtomicLong();
+  private long sent;
+
+  private final long startNS;
+  private final OutputStream resultsOut;
+
+  private final boolean poisson;
+  private final Random random;
+  private int nextTask;
+
+  // Requests intended to start before this go into the
+  // first-half queue time histogram, others into the
+  // second half; used to see if the server's queue is
+  // growing during a run:
+  private volatile long halfwayNS = Long.MAX_VALUE;
+
+  public SendTasks(List<String> tasks, String host, int port, int numConnections, String resultsFile,
+                   boolean poisson, Random random) throws IOException {
+    this.poisson = poisson;
+    this.random = random;
+    taskCategory = new int[tasks.size()];
+    taskBytes = new byte[tasks.size()][];
+    categories = new ArrayList<String>();
+    final Map<String,Integer> catToIndex = new HashMap<String,Integer>();
+    for(int i=0;i<tasks.size();i++) {
+      final String task = tasks.get(i);
+      final String cat = getCategory(task);
+      Integer idx = catToIndex.get(cat);
+      if (idx == null) {
+        idx = categories.size();
+        catToIndex.put(cat, idx);
+        categories.add(cat);
+      }
+      taskCategory[i] = idx;
+      taskBytes[i] = task.getBytes("UTF-8");
+    }
+
+    if (resultsFile != null) {
+      resultsOut = new BufferedOutputStream(new FileOutputStream(resultsFile), 65536);
+    } else {
+      resultsOut = null;
+    }
+
+    startNS = System.nanoTime();
+
+    connections = new ClientConnection[numConnections];
+    for(int i=0;i<numConnections;i++) {
+      connections[i] = new ClientConnection(host, port, i);
+      connections[i].start();
+    }
+  }
+
+  static String getCategory(String task) {
+    final int idx = task.indexOf(':');
+    if (idx == -1) {
+      throw new IllegalArgumentException("task line is malformed: " + task);
+    }
+    return task.substring(0, idx).trim();
+  }
+
+  // One socket to the server, with a dedicated thread
+  // reading its responses:
+  private final class ClientConnection extends Thread {
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    // Each connection records into its own histograms;
+    // they are merged when the run finishes:
+    final Histogram latency = HistogramUtil.newHistogram();
+    final Histogram uncorrectedLatency = HistogramUtil.newHistogram();
+    final Histogram queueTime = HistogramUtil.newHistogram();
+    final Histogram queueTimeFirstHalf = HistogramUtil.newHistogram();
+    final Histogram queueTimeSecondHalf = HistogramUtil.newHistogram();
+    final Histogram[] latencyByCat;
+
+    public ClientConnection(String host, int port, int id) throws IOException {
+      socket = new Socket();
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port));
+      out = new DataOutputStream(socket.getOutputStream());
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+      latencyByCat = new Histogram[categories.size()];
+      for(int i=0;i<latencyByCat.length;i++) {
+        latencyByCat[i] = HistogramUtil.newHistogram();
+      }
+      setName("SendTasks connection " + id);
+      setDaemon(true);
+    }
+
+    // Only called from the sending thread
+    void send(long requestID, byte[] task) throws IOException {
+      out.writeInt(8 + task.length);
+      out.writeLong(requestID);
+      out.write(task);
+      out.flush();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final long requestID;
+          try {
+            requestID = in.readLong();
+          } catch (EOFException eofe) {
+            break;
+          }
+          final byte status = in.readByte();
+          final int totalHitCount = in.readInt();
+          final long queueTimeNS = in.readLong();
+          // Service time; unused for now:
+          in.readLong();
+          if (status >= RemoteTaskSource.STATUS_REJECTED) {
+            // Server never ran it; its latency would only
+            // flatter the histograms:
+            dropped.incrementAndGet();
+            completed.incrementAndGet();
+            continue;
+          }
+          if (status == RemoteTaskSource.STATUS_LATE) {
+            late.incrementAndGet();
+          }
+          final long endNS = System.nanoTime();
+          final int slot = (int) (requestID & (MAX_OUTSTANDING-1));
+          final long intendedNS = intendedStartNS.get(slot);
+          final long latencyNS = endNS - intendedNS;
+          final int task = taskIndex[slot];
+          record(latency, latencyNS);
+          record(uncorrectedLatency, endNS - actualStartNS.get(slot));
+          record(queueTime, queueTimeNS);
+          record(intendedNS < halfwayNS ? queueTimeFirstHalf : queueTimeSecondHalf, queueTimeNS);
+          record(latencyByCat[taskCategory[task]], latencyNS);
+          if (resultsOut != null) {
+            writeResult(task, totalHitCount, intendedNS, latencyNS, queueTimeNS);
+          }
+          completed.incrementAndGet();
+        }
+      } catch (IOException ioe) {
+        if (!socket.isClosed()) {
+          throw new RuntimeException(ioe);
+        }
+      }
+    }
+
+    // Only safe to call once all requests have completed
+    void reset() {
+      latency.reset();
+      uncorrectedLatency.reset();
+      queueTime.reset();
+      queueTimeFirstHalf.reset();
+      queueTimeSecondHalf.reset();
+      for(Histogram h : latencyByCat) {
+        h.reset();
+      }
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  private static void record(Histogram h, long ns) {
+    h.recordValue(HistogramUtil.toMicros(ns));
+  }
+
+  // Same record format as sendTasks.py's results.bin, so
+  // responseTimeGraph.py/loadGraph.py work unchanged:
+  private final ByteBuffer resultBuffer = ByteBuffer.allocate(17).order(ByteOrder.LITTLE_ENDIAN);
+
+  private synchronized void writeResult(int task, int totalHitCount, long intendedNS, long latencyNS, long queueTimeNS) throws IOException {
+    final byte[] bytes = taskBytes[task];
+    final int len = Math.min(255, bytes.length);
+    resultBuffer.clear();
+    resultBuffer.putFloat((float) ((intendedNS - startNS)/1000000000.0));
+    resultBuffer.putFloat((float) (latencyNS/1000000.0));
+    resultBuffer.putFloat((float) (queueTimeNS/1000000.0));
+    resultBuffer.putInt(totalHitCount);
+    resultBuffer.put((byte) len);
+    resultsOut.write(resultBuffer.array(), 0, resultBuffer.position());
+    resultsOut.write(bytes, 0, len);
+  }
+
+  // Sends one request, scheduled for intendedNS; returns
+  // how far behind schedule we were, in nanos:
+  long send(int task, long intendedNS) throws IOException {
+    long nowNS = System.nanoTime();
+    while (nowNS < intendedNS) {
+      final long pauseNS = intendedNS - nowNS;
+      if (pauseNS > 50000) {
+        // Leave some slack for park's wakeup latency:
+        LockSupport.parkNanos(pauseNS - 20000);
+      } else {
+        Thread.yield();
+      }
+      nowNS = System.nanoTime();
+    }
+
+    if (sent - completed.get() >= MAX_OUTSTANDING) {
+      throw new IllegalStateException("more than " + MAX_OUTSTANDING + " requests outstanding: server is hopelessly behind");
+    }
+
+    final long requestID = sent++;
+    final int slot = (int) (requestID & (MAX_OUTSTANDING-1));
+    taskIndex[slot] = task;
+    actualStartNS.set(slot, nowNS);
+    intendedStartNS.set(slot, intendedNS);
+    connections[(int) (requestID % connections.length)].send(requestID, taskBytes[task]);
+    return nowNS - intendedNS;
+  }
+
+  long getOutstanding() {
+    return sent - completed.get();
+  }
+
+  // Sends tasks, cycling through the task list, at the
+  // target QPS for runTimeSec; returns once the last task
+  // was sent, without waiting for responses:
+  void run(double qps, double runTimeSec) throws IOException {
+    final long runStartNS = System.nanoTime();
+    final long stopNS = runStartNS + (long) (runTimeSec * 1000000000);
+    final long sentAtStart = sent;
+    halfwayNS = runStartNS + (stopNS - runStartNS)/2;
+    long intendedNS = runStartNS;
+    long lastPrintNS = runStartNS;
+    long lastPrintCompleted = completed.get();
+    boolean warned = false;
+
+    while (true) {
+      intendedNS += nextIntervalNS(poisson, qps, random);
+      if (intendedNS >= stopNS) {
+        break;
+      }
+      final long behindNS = send(nextTask, intendedNS);
+      if (++nextTask == taskBytes.length) {
+        nextTask = 0;
+      }
+      if (behindNS > 5000000) {
+        if (!warned) {
+          System.out.println(String.format(Locale.ENGLISH, "WARNING: hiccup %.1f msec", behindNS/1000000.0));
+          warned = true;
+        }
+      } else {
+        warned = false;
+      }
+
+      final long nowNS = System.nanoTime();
+      if (nowNS - lastPrintNS > 2000000000L) {
+        final long completedNow = completed.get();
+        System.out.println(String.format(Locale.ENGLISH, "%6.1f s: %5.1f%%: %7.1f qps in; %7.1f qps out; %d outstanding; %d dropped; %d late",
+                                         (nowNS - startNS)/1000000000.0,
+                                         Math.min(100.0, 100.0*(nowNS - runStartNS)/(stopNS - runStartNS)),
+                                         (sent - sentAtStart)/((nowNS - runStartNS)/1000000000.0),
+                                         (completedNow - lastPrintCompleted)/((nowNS - lastPrintNS)/1000000000.0),
+                                         getOutstanding(), dropped.get(), late.get()));
+        lastPrintNS = nowNS;
+        lastPrintCompleted = completedNow;
+      }
+    }
+
+    System.out.println(String.format(Locale.ENGLISH, "%.1f sec: done sending %d tasks",
+                                     (System.nanoTime() - startNS)/1000000000.0, sent - sentAtStart));
+  }
+
+  // Waits up to maxWaitSec for in-flight requests; returns
+  // true if they all completed:
+  boolean drain(double maxWaitSec) throws InterruptedException {
+    final long stopNS = System.nanoTime() + (long) (maxWaitSec * 1000000000);
+    while (getOutstanding() > 0 && System.nanoTime() < stopNS) {
+      Thread.sleep(10);
+    }
+    return getOutstanding() == 0;
+  }
+
+  // Clears all recorded latencies; only call this when
+  // nothing is outstanding:
+  void resetHistograms() {
+    for(ClientConnection c : connections) {
+      c.reset();
+    }
+  }
+
+  void close() throws IOException, InterruptedException {
+    for(ClientConnection c : connections) {
+      c.close();
+    }
+    for(ClientConnection c : connections) {
+      c.join();
+    }
+    if (resultsOut != null) {
+      synchronized(this) {
+        resultsOut.close();
+      }
+    }
+  }
+
+  Histogram getLatency() {
+    final Histogram h = HistogramUtil.newHistogram();
+    for(ClientConnection c : connections) {
+      h.add(c.latency);
+    }
+    return h;
+  }
+
+  Histogram getUncorrectedLatency() {
+    final Histogram h = HistogramUtil.newHistogram();
+    for(ClientConnection c : connections) {
+      h.add(c.uncorrectedLatency);
+    }
+    return h;
+  }
+
+  Histogram getQueueTime() {
+    final Histogram h = HistogramUtil.newHistogram();
+    for(ClientConnection c : connections) {
+      h.add(c.queueTime);
+    }
+    return h;
+  }
+
+  Histogram getQueueTimeFirstHalf() {
+    final Histogram h = HistogramUtil.newHistogram();
+    for(ClientConnection c : connections) {
+      h.add(c.queueTimeFirstHalf);
+    }
+    return h;
+  }
+
+  Histogram getQueueTimeSecondHalf() {
+    final Histogram h = HistogramUtil.newHistogram();
+    for(ClientConnection c : connections) {
+      h.add(c.queueTimeSecondHalf);
+    }
+    return h;
+  }
+
+  Histogram getLatency(int category) {
+    final Histogram h = HistogramUtil.newHistogram();
+    for(ClientConnection c : connections) {
+      h.add(c.latencyByCat[category]);
+    }
+    return h;
+  }
+
+  List<String> getCategories() {
+    return categories;
+  }
+
+  static List<String> loadTasks(String tasksFile, int numTasksPerCat, Random random) throws IOException {
+    final List<String> tasks = new ArrayList<String>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(tasksFile), "UTF-8"), 16384);
+    try {
+      while(true) {
+        String line = reader.readLine();
+        if (line == null) {
+          break;
+        }
+        final int idx = line.indexOf('#');
+        if (idx != -1) {
+          line = line.substring(0, idx);
+        }
+        line = line.trim();
+        if (line.length() == 0) {
+          continue;
+        }
+        tasks.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    Collections.shuffle(tasks, random);
+    System.out.println(tasks.size() + " tasks");
+
+    // Prune to numTasksPerCat per category:
+    final Map<String,Integer> catCounts = new HashMap<String,Integer>();
+    final List<String> prunedTasks = new ArrayList<String>();
+    for(String task : tasks) {
+      final String cat = getCategory(task);
+      Integer count = catCounts.get(cat);
+      if (count == null) {
+        count = 0;
+      }
+      if (count < numTasksPerCat) {
+        catCounts.put(cat, count+1);
+        prunedTasks.add(task);
+      }
+    }
+    System.out.println(prunedTasks.size() + " tasks after prune");
+
+    // Shuffle again (pruning collates):
+    Collections.shuffle(prunedTasks, random);
+    return prunedTasks;
+  }
+
+  // Returns nanos until the next send for the requested
+  // arrival process:
+  static long nextIntervalNS(boolean poisson, double qps, Random random) {
+    if (poisson) {
+      return (long) (-Math.log(1.0 - random.nextDouble()) / qps * 1000000000);
+    } else {
+      return (long) (1000000000 / qps);
+    }
+  }
+
+  // Runs one sweep step at the given QPS and returns
+  // true if the server kept up: p99 latency within the SLO,
+  // its queue not growing, and (if it sheds load) no more
+  // than maxDropPct of requests dropped.  The step's latency
+  // is left in the histograms.
+  private boolean runSweepStep(double qps, double stepSec, double sloP99MS, double maxDropPct) throws IOException, InterruptedException {
+    resetHistograms();
+    final long completedAtStart = completed.get();
+    final long sentAtStart = sent;
+    final long droppedAtStart = dropped.get();
+    run(qps, stepSec);
+
+    // If the server can't work off what we sent within
+    // another step's worth of time, it's saturated:
+    final boolean drained = drain(stepSec);
+
+    final Histogram latency = getLatency();
+    final double p99MS = latency.getValueAtPercentile(99.0)/1000.0;
+    final double queueMS1 = getQueueTimeFirstHalf().getValueAtPercentile(50.0)/1000.0;
+    final double queueMS2 = getQueueTimeSecondHalf().getValueAtPercentile(50.0)/1000.0;
+
+    // Queue time that keeps climbing through the step
+    // means requests arrive faster than they are served:
+    final boolean queueGrowing = queueMS2 > 2*queueMS1 && queueMS2 > 1.0;
+
+    // A server shedding load keeps its latency low by not
+    // answering, so too many drops also fail the step:
+    final double dropPct = 100.0*(dropped.get() - droppedAtStart)/Math.max(1, sent - sentAtStart);
+
+    final boolean pass = drained && !queueGrowing && p99MS <= sloP99MS && dropPct <= maxDropPct;
+    System.out.println(String.format(Locale.ENGLISH, "Sweep: %.1f QPS: %.1f qps out; p99=%.2f msec (SLO %.2f); median queue %.2f -> %.2f msec; %.2f%% dropped%s: %s",
+                                     qps, (completed.get() - completedAtStart)/stepSec, p99MS, sloP99MS, queueMS1, queueMS2, dropPct,
+                                     drained ? "" : "; did not drain",
+                                     pass ? "PASS" : "FAIL"));
+    if (!drained) {
+      // Give the server a chance to catch up so the next
+      // (lower) step isn't measuring this one's backlog:
+      if (!drain(Math.max(300.0, 10*stepSec))) {
+        throw new IllegalStateException("server did not catch up after sweep step at " + qps + " QPS");
+      }
+    }
+    return pass;
+  }
+
+  // Steps the target QPS up by stepFactor until a step
+  // fails, then bisects between the last passing and
+  // first failing QPS until they are within resolution of
+  // each other; returns the highest passing QPS (the knee),
+  // or 0.0 if even startQPS fails.
+  double sweep(double startQPS, double stepFactor, double stepSec, double sloP99MS, double maxDropPct, double resolution,
+               String hgrmPrefix) throws IOException, InterruptedException {
+    double passQPS = 0.0;
+    double failQPS = Double.POSITIVE_INFINITY;
+    Histogram passLatency = null;
+
+    double qps = startQPS;
+    while (true) {
+      if (runSweepStep(qps, stepSec, sloP99MS, maxDropPct)) {
+        passQPS = qps;
+        passLatency = getLatency();
+        if (failQPS == Double.POSITIVE_INFINITY) {
+          qps *= stepFactor;
+        }
+      } else {
+        failQPS = qps;
+      }
+
+      if (failQPS != Double.POSITIVE_INFINITY) {
+        if (passQPS == 0.0 || failQPS/passQPS <= 1.0 + resolution) {
+          break;
+        }
+        qps = (passQPS + failQPS)/2;
+      }
+    }
+
+    if (passQPS == 0.0) {
+      System.out.println("Sweep: even " + startQPS + " QPS fails the SLO; try a lower -sweepStartQPS");
+    } else {
+      System.out.println(String.format(Locale.ENGLISH, "Sweep: knee QPS=%.1f (fails at %.1f QPS)", passQPS, failQPS));
+      System.out.println("Latency at knee: " + HistogramUtil.summarize(passLatency));
+      if (hgrmPrefix != null) {
+        HistogramUtil.writeHistogram(passLatency, hgrmPrefix + ".knee.hgrm");
+      }
+    }
+    return passQPS;
+  }
+
+  public static void main(String[] clArgs) throws Exception {
+    final Args args = new Args(clArgs);
+    final String tasksFile = args.getString("-tasks");
+    final String host = args.getString("-host", "localhost");
+    final int port = Integer.parseInt(args.getString("-port", "7777"));
+    // Either a fixed target QPS, or "sweep" to search for
+    // the highest QPS that meets -sloP99MS:
+    final String qpsString = args.getString("-qps");
+    final String arrival = args.getString("-arrival", "poisson");
+    final int numTasksPerCat = args.getInt("-tasksPerCat");
+    final long seed = Long.parseLong(args.getString("-seed", "0"));
+    final int numConnections = Integer.parseInt(args.getString("-connections", "1"));
+    final String hgrmPrefix = args.getString("-hgrm", null);
+    final String resultsFile = args.getString("-results", null);
+
+    final boolean doSweep = qpsString.equals("sweep");
+    final double qps;
+    final double runTimeSec;
+    final double sweepStartQPS;
+    final double sweepStepFactor;
+    final double sweepStepSec;
+    final double sweepResolution;
+    final double sloP99MS;
+    final double sweepMaxDropPct;
+    if (doSweep) {
+      qps = 0.0;
+      runTimeSec = 0.0;
+      sweepStartQPS = Double.parseDouble(args.getString("-sweepStartQPS", "10"));
+      sweepStepFactor = Double.parseDouble(args.getString("-sweepStepFactor", "2.0"));
+      sweepStepSec = Double.parseDouble(args.getString("-sweepStepSec", "60"));
+      sweepResolution = Double.parseDouble(args.getString("-sweepResolution", "0.05"));
+      sloP99MS = args.getDouble("-sloP99MS");
+      sweepMaxDropPct = Double.parseDouble(args.getString("-sweepMaxDropPct", "0.1"));
+    } else {
+      qps = Double.parseDouble(qpsString);
+      runTimeSec = args.getDouble("-runTimeSec");
+      sweepStartQPS = 0.0;
+      sweepStepFactor = 0.0;
+      sweepStepSec = 0.0;
+      sweepResolution = 0.0;
+      sloP99MS = 0.0;
+      sweepMaxDropPct = 0.0;
+    }
+    args.check();
+
+    final boolean poisson;
+    if (arrival.equals("poisson")) {
+      poisson = true;
+    } else if (arrival.equals("fixed")) {
+      poisson = false;
+    } else {
+      throw new IllegalArgumentException("-arrival must be poisson or fixed; got " + arrival);
+    }
+
+    if (doSweep) {
+      System.out.println("Sweep from " + sweepStartQPS + " QPS, x" + sweepStepFactor + " per " + sweepStepSec + " sec step, p99 SLO " + sloP99MS + " msec (" + arrival + " arrivals)");
+    } else {
+      System.out.println("Target QPS " + qps + " (" + arrival + " arrivals)");
+    }
+    System.out.println("Connections " + numConnections);
+
+    final Random random = new Random(seed);
+    final List<String> tasks = loadTasks(tasksFile, numTasksPerCat, random);
+    final SendTasks sender = new SendTasks(tasks, host, port, numConnections, resultsFile, poisson, random);
+
+    if (doSweep) {
+      sender.sweep(sweepStartQPS, sweepStepFactor, sweepStepSec, sloP99MS, sweepMaxDropPct, sweepResolution, hgrmPrefix);
+      sender.close();
+      return;
+    }
+
+    sender.run(qps, runTimeSec);
+    System.out.println("Waiting for responses...");
+    if (!sender.drain(60.0)) {
+      System.out.println("WARNING: " + sender.getOutstanding() + " requests still outstanding; giving up");
+    }
+    sender.close();
+
+    System.out.println("\nLatency (corrected for coordinated omission): " + HistogramUtil.summarize(sender.getLatency()));
+    System.out.println("Latency (uncorrected): " + HistogramUtil.summarize(sender.getUncorrectedLatency()));
+    System.out.println("Queue time: " + HistogramUtil.summarize(sender.getQueueTime()));
+    System.out.println("Dropped by server: " + sender.dropped.get() + "; late: " + sender.late.get());
+    final List<String> categories = sender.getCategories();
+    for(int cat=0;cat<categories.size();cat++) {
+      System.out.println("  " + categories.get(cat) + ": " + HistogramUtil.summarize(sender.getLatency(cat)));
+    }
+
+    if (hgrmPrefix != null) {
+      HistogramUtil.writeHistogram(sender.getLatency(), hgrmPrefix + ".hgrm");
+      HistogramUtil.writeHistogram(sender.getUncorrectedLatency(), hgrmPrefix + ".uncorrected.hgrm");
+      for(int cat=0;cat<categories.size();cat++) {
+        HistogramUtil.writeHistogram(sender.getLatency(cat), hgrmPrefix + "." + categories.get(cat) + ".hgrm");
+      }
+    }
+  }
+}
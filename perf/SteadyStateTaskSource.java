@@ -0,0 +1,262 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Wraps another TaskSource and splits the run into a warmup
+// phase and a measured phase.  Warmup lasts until every
+// category's throughput is steady: a background thread
+// samples each category's completed task count every
+// sampleSec, and once the coefficient of variation
+// (stddev/mean) of the last windowSize samples is at most
+// maxCV for all categories, the latency histograms are
+// reset and the measured phase runs for measureSec seconds
+// or measureTaskCount tasks, after which nextTask returns
+// null.
+//
+// If throughput never settles, the measured phase starts
+// anyway after maxWarmupSec.  The inner source must have
+// enough tasks for warmup plus measurement.
+class SteadyStateTaskSource extends Thread implements TaskSource {
+
+  private final TaskSource tasks;
+  private final double sampleSec;
+  private final int windowSize;
+  private final double maxCV;
+  private final double maxWarmupSec;
+  private final double measureSec;
+  private final long measureTaskCount;
+
+  private TaskThreads taskThreads;
+
+  private final ConcurrentHashMap<String,AtomicLong> completedByCat = new ConcurrentHashMap<String,AtomicLong>();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong measuredTaskCount = new AtomicLong();
+
+  private volatile boolean measuring;
+  private volatile boolean done;
+  private volatile boolean ranOut;
+  private volatile long measureStartNS;
+  private volatile long measureEndNS;
+
+  // Only touched by the sampling thread:
+  private final Map<String,double[]> samplesByCat = new TreeMap<String,double[]>();
+  private int sampleCount;
+  private long startNS;
+  private long warmupTaskCount;
+  private boolean reachedSteadyState;
+
+  // Set measureTaskCount to 0 to measure for measureSec
+  // instead:
+  public SteadyStateTaskSource(TaskSource tasks, double sampleSec, int windowSize, double maxCV, double maxWarmupSec,
+                               double measureSec, long measureTaskCount) {
+    if (windowSize < 2) {
+      throw new IllegalArgumentException("windowSize must be >= 2 (got: " + windowSize + ")");
+    }
+    if (measureTaskCount <= 0 && measureSec <= 0) {
+      throw new IllegalArgumentException("one of measureSec or measureTaskCount must be > 0");
+    }
+    this.tasks = tasks;
+    this.sampleSec = sampleSec;
+    this.windowSize = windowSize;
+    this.maxCV = maxCV;
+    this.maxWarmupSec = maxWarmupSec;
+    this.measureSec = measureSec;
+    this.measureTaskCount = measureTaskCount;
+    setName("SteadyState");
+    setDaemon(true);
+  }
+
+  // The threads whose latencies we reset once warmup is done:
+  public void setTaskThreads(TaskThreads taskThreads) {
+    this.taskThreads = taskThreads;
+  }
+
+  @Override
+  public Task nextTask(int threadID) throws InterruptedException {
+    if (done) {
+      return null;
+    }
+    if (measuring) {
+      if (measureTaskCount > 0) {
+        if (measuredTaskCount.incrementAndGet() > measureTaskCount) {
+          finishMeasuring();
+          return null;
+        }
+      } else if (System.nanoTime() - measureEndNS >= 0) {
+        finishMeasuring();
+        return null;
+      }
+    }
+    final Task task = tasks.nextTask(threadID);
+    if ((task == null || task == Task.END_TASK) && measuring) {
+      ranOut = true;
+      finishMeasuring();
+    }
+    return task;
+  }
+
+  private synchronized void finishMeasuring() {
+    if (!done) {
+      measureEndNS = System.nanoTime();
+      done = true;
+    }
+  }
+
+  @Override
+  public void taskDone(Task task, long queueTimeNS, int totalHitCount) throws IOException {
+    final String category = task.getCategory();
+    AtomicLong count = completedByCat.get(category);
+    if (count == null) {
+      completedByCat.putIfAbsent(category, new AtomicLong());
+      count = completedByCat.get(category);
+    }
+    count.incrementAndGet();
+    completed.incrementAndGet();
+    tasks.taskDone(task, queueTimeNS, totalHitCount);
+  }
+
+  @Override
+  public void run() {
+    startNS = System.nanoTime();
+    final long sampleNS = (long) (sampleSec * 1000000000);
+    final Map<String,Long> lastCounts = new TreeMap<String,Long>();
+    long nextSampleNS = startNS + sampleNS;
+    try {
+      while (!measuring) {
+        while (true) {
+          final long waitNS = nextSampleNS - System.nanoTime();
+          if (waitNS <= 0) {
+            break;
+          }
+          Thread.sleep(waitNS/1000000, (int) (waitNS%1000000));
+        }
+        nextSampleNS += sampleNS;
+
+        for(Map.Entry<String,AtomicLong> ent : completedByCat.entrySet()) {
+          final long count = ent.getValue().get();
+          final Long last = lastCounts.get(ent.getKey());
+          lastCounts.put(ent.getKey(), count);
+          double[] samples = samplesByCat.get(ent.getKey());
+          if (samples == null) {
+            samples = new double[windowSize];
+            samplesByCat.put(ent.getKey(), samples);
+          }
+          samples[sampleCount % windowSize] = (count - (last == null ? 0 : last.longValue())) / sampleSec;
+        }
+        sampleCount++;
+
+        final double elapsedSec = (System.nanoTime() - startNS)/1000000000.0;
+        if (isSteady()) {
+          reachedSteadyState = true;
+          startMeasuring();
+        } else if (elapsedSec >= maxWarmupSec) {
+          System.out.println(String.format(Locale.ENGLISH, "WARNING: throughput still not steady after %.1f sec warmup; measuring anyway", elapsedSec));
+          startMeasuring();
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // True once the last windowSize samples of every
+  // category have CV <= maxCV.  A category that first shows
+  // up mid-window counts as unsteady:
+  private boolean isSteady() {
+    if (sampleCount < windowSize || samplesByCat.isEmpty()) {
+      return false;
+    }
+    for(Map.Entry<String,double[]> ent : samplesByCat.entrySet()) {
+      if (getCV(ent.getValue()) > maxCV) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static double getCV(double[] samples) {
+    double sum = 0;
+    for(double v : samples) {
+      sum += v;
+    }
+    final double mean = sum / samples.length;
+    if (mean == 0.0) {
+      return Double.POSITIVE_INFINITY;
+    }
+    double sumSq = 0;
+    for(double v : samples) {
+      sumSq += (v-mean)*(v-mean);
+    }
+    return Math.sqrt(sumSq / samples.length) / mean;
+  }
+
+  private void startMeasuring() {
+    warmupTaskCount = completed.get();
+    if (taskThreads != null) {
+      taskThreads.resetLatencies();
+    }
+    measureStartNS = System.nanoTime();
+    measureEndNS = measureStartNS + (long) (measureSec * 1000000000);
+    measuring = true;
+    System.out.println(String.format(Locale.ENGLISH, "Warmup: %s after %.1f sec, %d tasks; now measuring for %s",
+                                     reachedSteadyState ? "steady" : "gave up",
+                                     (measureStartNS - startNS)/1000000000.0, warmupTaskCount,
+                                     measureTaskCount > 0 ? measureTaskCount + " tasks" : measureSec + " sec"));
+  }
+
+  public boolean isMeasuring() {
+    return measuring;
+  }
+
+  // Only call these once all search threads are done:
+
+  public double getMeasuredSec() {
+    if (!measuring) {
+      return 0.0;
+    }
+    final long endNS = done ? measureEndNS : System.nanoTime();
+    return (endNS - measureStartNS)/1000000000.0;
+  }
+
+  public void printSummary(PrintStream out) {
+    if (!measuring) {
+      out.println("Warmup: never finished; the task source ran out first (" + completed.get() + " tasks)");
+      return;
+    }
+    out.println(String.format(Locale.ENGLISH, "Warmup: %.1f sec, %d tasks (%s); measured %.1f sec, %d tasks%s",
+                              (measureStartNS - startNS)/1000000000.0, warmupTaskCount,
+                              reachedSteadyState ? "steady at CV <= " + maxCV : "not steady",
+                              getMeasuredSec(), completed.get() - warmupTaskCount,
+                              ranOut ? " (the task source ran out first)" : ""));
+    final List<String> cvs = new ArrayList<String>();
+    for(Map.Entry<String,double[]> ent : samplesByCat.entrySet()) {
+      cvs.add(String.format(Locale.ENGLISH, "%s=%.3f", ent.getKey(), getCV(ent.getValue())));
+    }
+    out.println("  throughput CV at end of warmup: " + cvs);
+  }
+}
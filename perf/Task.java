@@ -27,12 +27,18 @@ import java.io.PrintStream;
 abstract class Task {
   //public String origString;
 
-  public int taskID;
+  // For remote tasks, the request ID the client assigned;
+  // it's echoed back in the response:
+  public long taskID;
 
   public int totalHitCount;
 
   public long recvTimeNS;
 
+  // Set by RemoteTaskSource: the client connection that sent
+  // this task, so the result goes back to the right client:
+  public RemoteTaskSource.Connection connection;
+
   public abstract void go(IndexState state) throws IOException;
 
   public abstract String getCategory();
@@ -44,6 +50,11 @@ abstract class Task {
   public long runTimeNanos;
   public int threadID;
 
+  // CPU time and bytes allocated by the search thread while
+  // running this task, or -1 if the JVM can't measure them:
+  public long cpuTimeNanos = -1;
+  public long allocatedBytes = -1;
+
   // Called after go, to return "summary" of the results.
   // This may use volatile docIDs -- the checksum is just
   // used to verify the same task run multiple times got
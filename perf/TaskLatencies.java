@@ -0,0 +1,185 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.HdrHistogram.Histogram;
+
+// Per-category service time and queue time histograms,
+// plus total CPU time and allocated bytes.  For tasks that
+// were queued, their latency (queue plus service time) is
+// also recorded.
+// Not thread safe: each search thread records into its own
+// instance, and they are merged once the run is done.
+// Instances sharing a resetEpoch are all reset (lazily, by
+// their own thread) whenever it is incremented.
+class TaskLatencies {
+
+  private final AtomicInteger resetEpoch;
+  private int epoch;
+
+  private static final class CategoryLatencies {
+    final Histogram serviceTime = HistogramUtil.newHistogram();
+    // Only created once a queued task is recorded:
+    Histogram queueTime;
+    Histogram latency;
+    long cpuCount;
+    long cpuTimeNS;
+    long allocCount;
+    long allocatedBytes;
+
+    void initQueued() {
+      if (queueTime == null) {
+        queueTime = HistogramUtil.newHistogram();
+        latency = HistogramUtil.newHistogram();
+      }
+    }
+  }
+
+  private final Map<String,CategoryLatencies> byCategory = new TreeMap<String,CategoryLatencies>();
+
+  public TaskLatencies() {
+    this(null);
+  }
+
+  public TaskLatencies(AtomicInteger resetEpoch) {
+    this.resetEpoch = resetEpoch;
+    if (resetEpoch != null) {
+      epoch = resetEpoch.get();
+    }
+  }
+
+  // Drops everything recorded before the last reset:
+  void checkReset() {
+    if (resetEpoch != null) {
+      final int current = resetEpoch.get();
+      if (current != epoch) {
+        byCategory.clear();
+        epoch = current;
+      }
+    }
+  }
+
+  private CategoryLatencies get(String category) {
+    CategoryLatencies latencies = byCategory.get(category);
+    if (latencies == null) {
+      latencies = new CategoryLatencies();
+      byCategory.put(category, latencies);
+    }
+    return latencies;
+  }
+
+  // queueTimeNS is -1 if the task was not queued;
+  // cpuTimeNS and allocatedBytes are -1 if not measured
+  public void record(String category, long serviceTimeNS, long queueTimeNS, long cpuTimeNS, long allocatedBytes) {
+    checkReset();
+    final CategoryLatencies latencies = get(category);
+    latencies.serviceTime.recordValue(HistogramUtil.toMicros(serviceTimeNS));
+    if (queueTimeNS != -1) {
+      latencies.initQueued();
+      latencies.queueTime.recordValue(HistogramUtil.toMicros(queueTimeNS));
+      latencies.latency.recordValue(HistogramUtil.toMicros(queueTimeNS + serviceTimeNS));
+    }
+    if (cpuTimeNS != -1) {
+      latencies.cpuCount++;
+      latencies.cpuTimeNS += cpuTimeNS;
+    }
+    if (allocatedBytes != -1) {
+      latencies.allocCount++;
+      latencies.allocatedBytes += allocatedBytes;
+    }
+  }
+
+  public void add(TaskLatencies other) {
+    for(Map.Entry<String,CategoryLatencies> ent : other.byCategory.entrySet()) {
+      final CategoryLatencies latencies = get(ent.getKey());
+      latencies.serviceTime.add(ent.getValue().serviceTime);
+      if (ent.getValue().queueTime != null) {
+        latencies.initQueued();
+        latencies.queueTime.add(ent.getValue().queueTime);
+        latencies.latency.add(ent.getValue().latency);
+      }
+      latencies.cpuCount += ent.getValue().cpuCount;
+      latencies.cpuTimeNS += ent.getValue().cpuTimeNS;
+      latencies.allocCount += ent.getValue().allocCount;
+      latencies.allocatedBytes += ent.getValue().allocatedBytes;
+    }
+  }
+
+  // Queue plus service time by category, for categories
+  // whose tasks were queued:
+  public Map<String,Histogram> getLatencyByCategory() {
+    final Map<String,Histogram> result = new TreeMap<String,Histogram>();
+    for(Map.Entry<String,CategoryLatencies> ent : byCategory.entrySet()) {
+      if (ent.getValue().latency != null) {
+        result.put(ent.getKey(), ent.getValue().latency);
+      }
+    }
+    return result;
+  }
+
+  public void printSummary(PrintStream out) {
+    for(Map.Entry<String,CategoryLatencies> ent : byCategory.entrySet()) {
+      out.println("  " + ent.getKey() + ": service " + HistogramUtil.summarize(ent.getValue().serviceTime));
+      if (ent.getValue().queueTime != null) {
+        out.println("  " + ent.getKey() + ": queue " + HistogramUtil.summarize(ent.getValue().queueTime));
+      }
+    }
+  }
+
+  // Per-category throughput over the run next to that
+  // category's single-query latency, and its mean CPU time
+  // and allocation per task:
+  public void printThroughput(PrintStream out, double runTimeSec) {
+    long totalCount = 0;
+    for(Map.Entry<String,CategoryLatencies> ent : byCategory.entrySet()) {
+      final CategoryLatencies latencies = ent.getValue();
+      final Histogram h = latencies.serviceTime;
+      totalCount += h.getTotalCount();
+      final StringBuilder sb = new StringBuilder();
+      sb.append(String.format(Locale.ENGLISH, "  %s: %.1f QPS; latency p50=%.2f p99=%.2f msec",
+                              ent.getKey(), h.getTotalCount()/runTimeSec,
+                              h.getValueAtPercentile(50.0)/1000.0, h.getValueAtPercentile(99.0)/1000.0));
+      if (latencies.cpuCount > 0) {
+        sb.append(String.format(Locale.ENGLISH, "; cpu %.3f msec/task", latencies.cpuTimeNS/1000000.0/latencies.cpuCount));
+      }
+      if (latencies.allocCount > 0) {
+        sb.append(String.format(Locale.ENGLISH, "; alloc %.1f KB/task", latencies.allocatedBytes/1024.0/latencies.allocCount));
+      }
+      out.println(sb);
+    }
+    out.println(String.format(Locale.ENGLISH, "  all: %.1f QPS", totalCount/runTimeSec));
+  }
+
+  // Writes <prefix>.<category>.service.hgrm (and
+  // .queue.hgrm, if tasks were queued) for each category:
+  public void write(String prefix) throws IOException {
+    for(Map.Entry<String,CategoryLatencies> ent : byCategory.entrySet()) {
+      HistogramUtil.writeHistogram(ent.getValue().serviceTime, prefix + "." + ent.getKey() + ".service.hgrm");
+      if (ent.getValue().queueTime != null) {
+        HistogramUtil.writeHistogram(ent.getValue().queueTime, prefix + "." + ent.getKey() + ".queue.hgrm");
+      }
+    }
+  }
+}
@@ -18,11 +18,10 @@ package perf;
  */
 
 import java.io.IOException;
-import java.util.List;
 
 interface TaskSource {
-  public Task nextTask() throws InterruptedException;
+  // threadID identifies the calling search thread
+  public Task nextTask(int threadID) throws InterruptedException;
   public void taskDone(Task task, long queueTimeNS, int totalHitCount) throws IOException;
-  public List<Task> getAllTasks();
 };
 
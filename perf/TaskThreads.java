@@ -18,20 +18,58 @@ package perf;
  */
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+// Runs tasks pulled from a TaskSource, either on a fixed
+// set of platform threads, or (useVirtualThreads) on one
+// virtual thread per task with a semaphore bounding how many
+// run concurrently:
 public class TaskThreads {  
 
   private final Thread[] threads;
   final CountDownLatch startLatch = new CountDownLatch(1);
   final CountDownLatch stopLatch;
 
+  // One per search thread (or virtual thread slot):
+  private final TaskLatencies[] latencies;
+
+  // Incremented to reset all threads' latencies:
+  private final AtomicInteger resetEpoch = new AtomicInteger();
+
   public TaskThreads(TaskSource tasks, IndexState indexState, int numThreads) {
-    threads = new Thread[numThreads];
-    stopLatch = new CountDownLatch(numThreads);
+    this(tasks, indexState, numThreads, false);
+  }
+
+  public TaskThreads(TaskSource tasks, IndexState indexState, int numThreads, boolean useVirtualThreads) {
+    this(tasks, indexState, numThreads, useVirtualThreads, null);
+  }
+
+  // hiccups, if not null, also records each task's latency:
+  public TaskThreads(TaskSource tasks, IndexState indexState, int numThreads, boolean useVirtualThreads, HiccupRecorder hiccups) {
+    latencies = new TaskLatencies[numThreads];
     for(int threadIDX=0;threadIDX<numThreads;threadIDX++) {
-      threads[threadIDX] = new TaskThread(startLatch, stopLatch, tasks, indexState, threadIDX);
-      threads[threadIDX].start();
+      latencies[threadIDX] = new TaskLatencies(resetEpoch);
+    }
+    if (useVirtualThreads) {
+      threads = new Thread[1];
+      stopLatch = new CountDownLatch(1);
+      threads[0] = new VirtualTaskDispatcher(startLatch, stopLatch, tasks, indexState, latencies, hiccups);
+      threads[0].start();
+    } else {
+      threads = new Thread[numThreads];
+      stopLatch = new CountDownLatch(numThreads);
+      for(int threadIDX=0;threadIDX<numThreads;threadIDX++) {
+        threads[threadIDX] = new TaskThread(startLatch, stopLatch, tasks, indexState, threadIDX, latencies[threadIDX], hiccups);
+        threads[threadIDX].start();
+      }
     }
   }
 
@@ -43,19 +81,128 @@ public class TaskThreads {
     stopLatch.await();
   }
 
+  // Discards latencies recorded so far, e.g. once warmup is
+  // done; each thread resets its own before its next record:
+  public void resetLatencies() {
+    resetEpoch.incrementAndGet();
+  }
+
+  // Merges all threads' latencies; only call this after
+  // finish:
+  public TaskLatencies getLatencies() {
+    final TaskLatencies merged = new TaskLatencies();
+    for(TaskLatencies threadLatencies : latencies) {
+      // In case this thread recorded nothing since the last
+      // reset:
+      threadLatencies.checkReset();
+      merged.add(threadLatencies);
+    }
+    return merged;
+  }
+
+  private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+  // Allocated bytes are only exposed by HotSpot's extension
+  // of ThreadMXBean:
+  private static final com.sun.management.ThreadMXBean hotspotThreadBean;
+
+  static {
+    if (threadBean.isCurrentThreadCpuTimeSupported() && !threadBean.isThreadCpuTimeEnabled()) {
+      threadBean.setThreadCpuTimeEnabled(true);
+    }
+    com.sun.management.ThreadMXBean bean = null;
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      bean = (com.sun.management.ThreadMXBean) threadBean;
+      if (bean.isThreadAllocatedMemorySupported() && !bean.isThreadAllocatedMemoryEnabled()) {
+        bean.setThreadAllocatedMemoryEnabled(true);
+      }
+      if (!bean.isThreadAllocatedMemoryEnabled()) {
+        bean = null;
+      }
+    }
+    hotspotThreadBean = bean;
+  }
+
+  // -1 if unsupported, e.g. on a virtual thread:
+  private static long getCurrentThreadCpuTime() {
+    if (!threadBean.isThreadCpuTimeEnabled()) {
+      return -1;
+    }
+    try {
+      return threadBean.getCurrentThreadCpuTime();
+    } catch (UnsupportedOperationException uoe) {
+      return -1;
+    }
+  }
+
+  private static long getCurrentThreadAllocatedBytes() {
+    if (hotspotThreadBean == null) {
+      return -1;
+    }
+    try {
+      return hotspotThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    } catch (UnsupportedOperationException uoe) {
+      return -1;
+    }
+  }
+
+  // Runs one task, records its latency and reports it back
+  // to the source.  CPU time and allocations only count the
+  // calling thread, so not work handed off to
+  // ConcurrentSearcher's executor:
+  static void runTask(Task task, TaskSource tasks, IndexState indexState, int threadID, TaskLatencies latencies, HiccupRecorder hiccups) {
+    final long cpu0 = getCurrentThreadCpuTime();
+    final long alloc0 = getCurrentThreadAllocatedBytes();
+    final long t0 = System.nanoTime();
+    // Only remote tasks have a receive time:
+    final long queueTimeNS = task.recvTimeNS == 0 ? -1 : t0-task.recvTimeNS;
+    final Object event = JFREvents.INSTANCE.taskStarted(task, queueTimeNS);
+    try {
+      task.go(indexState);
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    task.runTimeNanos = System.nanoTime()-t0;
+    JFREvents.INSTANCE.taskFinished(event, task, queueTimeNS);
+    if (cpu0 != -1) {
+      final long cpu1 = getCurrentThreadCpuTime();
+      task.cpuTimeNanos = cpu1 == -1 ? -1 : cpu1 - cpu0;
+    }
+    if (alloc0 != -1) {
+      final long alloc1 = getCurrentThreadAllocatedBytes();
+      task.allocatedBytes = alloc1 == -1 ? -1 : alloc1 - alloc0;
+    }
+    task.threadID = threadID;
+    latencies.record(task.getCategory(), task.runTimeNanos, queueTimeNS, task.cpuTimeNanos, task.allocatedBytes);
+    if (hiccups != null) {
+      hiccups.recordTask(task.runTimeNanos + (queueTimeNS == -1 ? 0 : queueTimeNS));
+    }
+    try {
+      tasks.taskDone(task, t0-task.recvTimeNS, task.totalHitCount);
+    } catch (Exception e) {
+      System.out.println(Thread.currentThread().getName() + ": ignoring exc:");
+      e.printStackTrace();
+    }
+  }
+
   private static class TaskThread extends Thread {
     private final CountDownLatch startLatch;
     private final CountDownLatch stopLatch;
     private final TaskSource tasks;
     private final IndexState indexState;
     private final int threadID;
+    private final TaskLatencies latencies;
+    private final HiccupRecorder hiccups;
 
-    public TaskThread(CountDownLatch startLatch, CountDownLatch stopLatch, TaskSource tasks, IndexState indexState, int threadID) {
+    public TaskThread(CountDownLatch startLatch, CountDownLatch stopLatch, TaskSource tasks, IndexState indexState, int threadID,
+                      TaskLatencies latencies, HiccupRecorder hiccups) {
       this.startLatch = startLatch;
       this.stopLatch = stopLatch;
       this.tasks = tasks;
       this.indexState = indexState;
       this.threadID = threadID;
+      this.latencies = latencies;
+      this.hiccups = hiccups;
     }
 
     @Override
@@ -69,31 +216,134 @@ public class TaskThreads {
 
       try {
         while(true) {
-          final Task task = tasks.nextTask();
-          if (task == null) {
+          final Task task = tasks.nextTask(threadID);
+          if (task == null || task == Task.END_TASK) {
             // Done
             break;
           }
-          final long t0 = System.nanoTime();
-          try {
-            task.go(indexState);
-          } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
-          }
-          try {
-            tasks.taskDone(task, t0-task.recvTimeNS, task.totalHitCount);
-          } catch (Exception e) {
-            System.out.println(Thread.currentThread().getName() + ": ignoring exc:");
-            e.printStackTrace();
+          runTask(task, tasks, indexState, threadID, latencies, hiccups);
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      } finally {
+        stopLatch.countDown();
+      }
+    }
+  }
+
+  // Pulls tasks from the source as fast as they come and
+  // starts a virtual thread for each one; the virtual
+  // threads then wait on a semaphore for one of numThreads
+  // search slots, so queueing happens in the scheduler
+  // instead of the task source's queue:
+  private static class VirtualTaskDispatcher extends Thread {
+
+    // Caps how many virtual threads may exist at once, so
+    // a local task source (which hands out all tasks
+    // immediately) doesn't start millions of them:
+    private static final int MAX_IN_FLIGHT = 10000;
+
+    private final CountDownLatch startLatch;
+    private final CountDownLatch stopLatch;
+    private final TaskSource tasks;
+    private final IndexState indexState;
+    private final TaskLatencies[] latencies;
+    private final HiccupRecorder hiccups;
+    private final ThreadFactory threadFactory;
+    private final Semaphore searchPermits;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final Queue<Integer> freeSlots = new ConcurrentLinkedQueue<Integer>();
+
+    // First exception thrown by a task; nobody would see it
+    // on the virtual thread, so the dispatcher stops and
+    // rethrows it:
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    public VirtualTaskDispatcher(CountDownLatch startLatch, CountDownLatch stopLatch, TaskSource tasks, IndexState indexState,
+                                 TaskLatencies[] latencies, HiccupRecorder hiccups) {
+      this.startLatch = startLatch;
+      this.stopLatch = stopLatch;
+      this.tasks = tasks;
+      this.indexState = indexState;
+      this.latencies = latencies;
+      this.hiccups = hiccups;
+      final int numThreads = latencies.length;
+      threadFactory = newVirtualThreadFactory();
+      // Fair, so tasks get a search slot in arrival order
+      // rather than whichever virtual thread is scheduled
+      // first:
+      searchPermits = new Semaphore(numThreads, true);
+      // Slot IDs stand in for thread IDs, so results still
+      // say which of the numThreads slots ran each task:
+      for(int slot=0;slot<numThreads;slot++) {
+        freeSlots.add(slot);
+      }
+      setName("VirtualTaskDispatcher");
+    }
+
+    @Override
+    public void run() {
+      try {
+        startLatch.await();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      try {
+        while(failure.get() == null) {
+          final Task task = tasks.nextTask(0);
+          if (task == null || task == Task.END_TASK) {
+            // Done
+            break;
           }
-          task.runTimeNanos = System.nanoTime()-t0;
-          task.threadID = threadID;
+          inFlight.acquire();
+          threadFactory.newThread(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  searchPermits.acquireUninterruptibly();
+                  final int slot = freeSlots.poll();
+                  try {
+                    runTask(task, tasks, indexState, slot, latencies[slot], hiccups);
+                  } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                  } finally {
+                    freeSlots.add(slot);
+                    searchPermits.release();
+                  }
+                } finally {
+                  inFlight.release();
+                }
+              }
+            }).start();
         }
+
+        // Wait for all running tasks to finish:
+        inFlight.acquire(MAX_IN_FLIGHT);
       } catch (Exception e) {
         throw new RuntimeException(e);
       } finally {
         stopLatch.countDown();
       }
+
+      final Throwable t = failure.get();
+      if (t != null) {
+        throw new RuntimeException("search task failed", t);
+      }
+    }
+  }
+
+  // Virtual threads need Java 21 or newer; look them up
+  // reflectively so we still compile on older JDKs:
+  static ThreadFactory newVirtualThreadFactory() {
+    try {
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "VirtualTaskThread-", 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (Exception e) {
+      throw new IllegalStateException("virtual threads require Java 21 or newer (running " + System.getProperty("java.version") + ")", e);
     }
   }
 }
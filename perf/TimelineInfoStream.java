@@ -0,0 +1,253 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.util.InfoStream;
+
+// InfoStream that picks flushes, merges, commits and stalls
+// out of IndexWriter's messages and writes one tab-separated
+// line per event, so indexing throughput dips can be lined
+// up with merges without scraping the full verbose log.
+// Each line is:
+//
+//   startSec thread event segment docs MB msec MB/sec detail
+//
+// where startSec is when the event began (relative to when
+// this was created), and "-" means unknown.  Events are:
+//
+//   flush       a segment was flushed (MB is the new segment's size)
+//   merge       a merge finished (MB is the merged size, if known)
+//   commit      a commit finished (detail is the segments file)
+//   mergeStall  an indexing thread waited for merges (CMS)
+//   flushStall  an indexing thread had to help flush
+//
+// Start and end messages are matched up per thread.  Segment
+// names aren't unique when several writers share this (e.g.
+// Indexer -shardCount).
+//
+// Optionally passes all messages through to another
+// InfoStream (e.g. -verbose).
+class TimelineInfoStream extends InfoStream {
+
+  private final static Pattern FLUSH_START = Pattern.compile("^flush postings as segment (\\S+) numDocs=(\\d+)");
+  private final static Pattern FLUSH_END = Pattern.compile("^flushed: segment=(\\S+) ramUsed=([0-9,.]+) MB newFlushedSize.*?=([0-9,.]+) MB");
+  private final static Pattern MERGE_START = Pattern.compile("^merge seg=(\\S+) (.*)");
+  private final static Pattern MERGE_SIZE = Pattern.compile("^merged segment size=([0-9,.]+) MB");
+  private final static Pattern MERGE_END = Pattern.compile("^merge time (\\d+) msec for (\\d+) docs");
+  private final static Pattern COMMIT_FILE = Pattern.compile("^commit: wrote segments file \"(.*)\"");
+  private final static Pattern CMS_STALLED = Pattern.compile("stalled for (\\d+) msec");
+  // Doc count in a segment's toString, e.g. _a(4.1):C1000/20:
+  private final static Pattern SEG_DOCS = Pattern.compile(":[cC]v?(\\d+)");
+
+  private final InfoStream delegate;
+  private final PrintStream out;
+  private final long startNS = System.nanoTime();
+
+  // In progress events, by thread:
+  private final Map<Thread,Event> flushes = new HashMap<Thread,Event>();
+  private final Map<Thread,Event> merges = new HashMap<Thread,Event>();
+  private final Map<Thread,Event> commits = new HashMap<Thread,Event>();
+  private final Map<Thread,Event> stalls = new HashMap<Thread,Event>();
+
+  private int flushCount;
+  private int mergeCount;
+  private int commitCount;
+  private int stallCount;
+  private long stallMS;
+
+  private static class Event {
+    final long startNS;
+    String segment;
+    long docs = -1;
+    double mb = -1;
+    String detail;
+
+    Event(long startNS) {
+      this.startNS = startNS;
+    }
+  }
+
+  public TimelineInfoStream(String path, InfoStream delegate) throws IOException {
+    this.delegate = delegate;
+    out = new PrintStream(new FileOutputStream(path), false, "UTF-8");
+    out.println("# startSec\tthread\tevent\tsegment\tdocs\tMB\tmsec\tMB/sec\tdetail");
+  }
+
+  @Override
+  public boolean isEnabled(String component) {
+    return component.equals("IW") || component.equals("DWPT") || component.equals("DW") || component.equals("CMS") ||
+      (delegate != null && delegate.isEnabled(component));
+  }
+
+  @Override
+  public void message(String component, String message) {
+    if (delegate != null && delegate.isEnabled(component)) {
+      delegate.message(component, message);
+    }
+    final long now = System.nanoTime();
+    final Thread thread = Thread.currentThread();
+    synchronized(this) {
+      if (component.equals("DWPT")) {
+        Matcher m = FLUSH_START.matcher(message);
+        if (m.find()) {
+          final Event event = new Event(now);
+          event.segment = m.group(1);
+          event.docs = Long.parseLong(m.group(2));
+          flushes.put(thread, event);
+          return;
+        }
+        m = FLUSH_END.matcher(message);
+        if (m.find()) {
+          Event event = flushes.remove(thread);
+          if (event == null) {
+            event = new Event(now);
+            event.segment = m.group(1);
+          }
+          event.mb = parseMB(m.group(3));
+          event.detail = "ramMB=" + m.group(2).replace(",", "");
+          write(thread, "flush", event, now);
+          flushCount++;
+        }
+      } else if (component.equals("IW")) {
+        Matcher m = MERGE_START.matcher(message);
+        if (m.find()) {
+          final Event event = new Event(now);
+          event.segment = m.group(1);
+          // Number and total docs of the segments being merged:
+          final Matcher segs = SEG_DOCS.matcher(m.group(2));
+          int segCount = 0;
+          long docs = 0;
+          while (segs.find()) {
+            segCount++;
+            docs += Long.parseLong(segs.group(1));
+          }
+          event.detail = "mergedSegs=" + segCount + " mergedDocs=" + docs;
+          merges.put(thread, event);
+          return;
+        }
+        m = MERGE_SIZE.matcher(message);
+        if (m.find()) {
+          final Event event = merges.get(thread);
+          if (event != null) {
+            event.mb = parseMB(m.group(1));
+          }
+          return;
+        }
+        m = MERGE_END.matcher(message);
+        if (m.find()) {
+          Event event = merges.remove(thread);
+          if (event == null) {
+            event = new Event(now - Long.parseLong(m.group(1))*1000000);
+          }
+          event.docs = Long.parseLong(m.group(2));
+          write(thread, "merge", event, now);
+          mergeCount++;
+          return;
+        }
+        if (message.equals("commit: start")) {
+          commits.put(thread, new Event(now));
+          return;
+        }
+        m = COMMIT_FILE.matcher(message);
+        if (m.find()) {
+          final Event event = commits.get(thread);
+          if (event != null) {
+            event.detail = m.group(1);
+          }
+          return;
+        }
+        if (message.equals("commit: done")) {
+          final Event event = commits.remove(thread);
+          if (event != null) {
+            write(thread, "commit", event, now);
+            commitCount++;
+          }
+        }
+      } else if (component.equals("CMS")) {
+        if (message.indexOf("too many merges; stalling") != -1) {
+          stalls.put(thread, new Event(now));
+          return;
+        }
+        final Matcher m = CMS_STALLED.matcher(message);
+        if (m.find()) {
+          Event event = stalls.remove(thread);
+          if (event == null) {
+            event = new Event(now - Long.parseLong(m.group(1))*1000000);
+          }
+          write(thread, "mergeStall", event, now);
+          stallCount++;
+          stallMS += (now - event.startNS)/1000000;
+        }
+      } else if (component.equals("DW")) {
+        if (message.indexOf("will hijack this thread") != -1) {
+          if (!stalls.containsKey(thread)) {
+            stalls.put(thread, new Event(now));
+          }
+        } else if (message.indexOf("continue indexing after helping out flushing") != -1) {
+          final Event event = stalls.remove(thread);
+          if (event != null) {
+            write(thread, "flushStall", event, now);
+            stallCount++;
+            stallMS += (now - event.startNS)/1000000;
+          }
+        }
+      }
+    }
+  }
+
+  // NumberFormat output, e.g. 1,234.5:
+  private static double parseMB(String s) {
+    return Double.parseDouble(s.replace(",", ""));
+  }
+
+  private void write(Thread thread, String type, Event event, long endNS) {
+    final double msec = (endNS - event.startNS)/1000000.0;
+    out.println(String.format(Locale.ENGLISH, "%.3f\t%s\t%s\t%s\t%s\t%s\t%.1f\t%s\t%s",
+                              (event.startNS - startNS)/1000000000.0,
+                              thread.getName(),
+                              type,
+                              event.segment == null ? "-" : event.segment,
+                              event.docs == -1 ? "-" : ""+event.docs,
+                              event.mb < 0 ? "-" : String.format(Locale.ENGLISH, "%.2f", event.mb),
+                              msec,
+                              event.mb < 0 || msec <= 0 ? "-" : String.format(Locale.ENGLISH, "%.2f", event.mb/(msec/1000.0)),
+                              event.detail == null ? "-" : event.detail));
+  }
+
+  public synchronized void printSummary(PrintStream out) {
+    out.println("Timeline: " + flushCount + " flushes; " + mergeCount + " merges; " + commitCount + " commits; " +
+                stallCount + " stalls (" + stallMS + " msec)");
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+    if (delegate != null) {
+      delegate.close();
+    }
+  }
+}
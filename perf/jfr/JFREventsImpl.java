@@ -0,0 +1,209 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import org.apache.lucene.index.AtomicReader;
+
+// The JFR events behind JFREvents; needs Java 11+.  Record
+// with e.g. -XX:StartFlightRecording=filename=search.jfr,settings=profile
+// and look for the "luceneutil" category in JDK Mission
+// Control.  Events that aren't enabled in the recording
+// settings cost just the isEnabled check.
+class JFREventsImpl extends JFREvents {
+
+  @Name("luceneutil.TaskQueued")
+  @Label("Task Queued")
+  @Category("luceneutil")
+  @StackTrace(false)
+  static class TaskQueuedEvent extends Event {
+    @Label("Category")
+    String category;
+
+    @Label("Task ID")
+    long taskID;
+  }
+
+  @Name("luceneutil.TaskStarted")
+  @Label("Task Started")
+  @Category("luceneutil")
+  @StackTrace(false)
+  static class TaskStartedEvent extends Event {
+    @Label("Category")
+    String category;
+
+    @Label("Task ID")
+    long taskID;
+
+    @Label("Queue Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueTime;
+  }
+
+  @Name("luceneutil.TaskFinished")
+  @Label("Task Finished")
+  @Description("Spans the task's run, from start to finish")
+  @Category("luceneutil")
+  @StackTrace(false)
+  static class TaskFinishedEvent extends Event {
+    @Label("Category")
+    String category;
+
+    @Label("Task ID")
+    long taskID;
+
+    @Label("Hits")
+    int hits;
+
+    @Label("Queue Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueTime;
+
+    @Label("Task")
+    String task;
+  }
+
+  @Name("luceneutil.SearcherRefresh")
+  @Label("Searcher Refresh")
+  @Description("SearcherManager.maybeRefresh in the reopen thread")
+  @Category("luceneutil")
+  @StackTrace(false)
+  static class RefreshEvent extends Event {
+    @Label("Refreshed")
+    boolean refreshed;
+  }
+
+  @Name("luceneutil.MergedSegmentWarm")
+  @Label("Merged Segment Warm")
+  @Category("luceneutil")
+  @StackTrace(false)
+  static class WarmEvent extends Event {
+    @Label("Segment")
+    String segment;
+
+    @Label("Max Doc")
+    int maxDoc;
+
+    @Label("Num Docs")
+    int numDocs;
+  }
+
+  private static final TaskQueuedEvent QUEUED = new TaskQueuedEvent();
+  private static final TaskStartedEvent STARTED = new TaskStartedEvent();
+  private static final TaskFinishedEvent FINISHED = new TaskFinishedEvent();
+  private static final RefreshEvent REFRESH = new RefreshEvent();
+  private static final WarmEvent WARM = new WarmEvent();
+
+  // Checks isInitialized first, since getFlightRecorder
+  // would start JFR just to answer:
+  @Override
+  public boolean isRecording() {
+    return FlightRecorder.isInitialized() && !FlightRecorder.getFlightRecorder().getRecordings().isEmpty();
+  }
+
+  @Override
+  public void taskQueued(Task task) {
+    if (QUEUED.isEnabled()) {
+      final TaskQueuedEvent event = new TaskQueuedEvent();
+      event.category = task.getCategory();
+      event.taskID = task.taskID;
+      event.commit();
+    }
+  }
+
+  @Override
+  public Object taskStarted(Task task, long queueTimeNS) {
+    if (STARTED.isEnabled()) {
+      final TaskStartedEvent event = new TaskStartedEvent();
+      event.category = task.getCategory();
+      event.taskID = task.taskID;
+      event.queueTime = queueTimeNS;
+      event.commit();
+    }
+    if (FINISHED.isEnabled()) {
+      final TaskFinishedEvent event = new TaskFinishedEvent();
+      event.begin();
+      return event;
+    }
+    return null;
+  }
+
+  @Override
+  public void taskFinished(Object token, Task task, long queueTimeNS) {
+    if (token != null) {
+      final TaskFinishedEvent event = (TaskFinishedEvent) token;
+      event.end();
+      if (event.shouldCommit()) {
+        event.category = task.getCategory();
+        event.taskID = task.taskID;
+        event.hits = task.totalHitCount;
+        event.queueTime = queueTimeNS;
+        event.task = task.toString();
+        event.commit();
+      }
+    }
+  }
+
+  @Override
+  public Object beginRefresh() {
+    if (REFRESH.isEnabled()) {
+      final RefreshEvent event = new RefreshEvent();
+      event.begin();
+      return event;
+    }
+    return null;
+  }
+
+  @Override
+  public void endRefresh(Object token, boolean refreshed) {
+    if (token != null) {
+      final RefreshEvent event = (RefreshEvent) token;
+      event.refreshed = refreshed;
+      event.commit();
+    }
+  }
+
+  @Override
+  public Object beginWarm() {
+    if (WARM.isEnabled()) {
+      final WarmEvent event = new WarmEvent();
+      event.begin();
+      return event;
+    }
+    return null;
+  }
+
+  @Override
+  public void endWarm(Object token, AtomicReader reader) {
+    if (token != null) {
+      final WarmEvent event = (WarmEvent) token;
+      event.segment = reader.toString();
+      event.maxDoc = reader.maxDoc();
+      event.numDocs = reader.numDocs();
+      event.commit();
+    }
+  }
+}
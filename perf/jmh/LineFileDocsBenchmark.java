@@ -0,0 +1,202 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.facet.taxonomy.CategoryPath;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measures each stage of LineFileDocs.nextDoc separately,
+// over a sample of a real line docs file, so parsing
+// changes can be measured without running IndexWriter:
+//
+//   splitLine       find the tabs and cut title/date/body
+//   parseDate       LineDateParser (parseDateSimpleDateFormat
+//                   is the old SimpleDateFormat + Calendar way)
+//   encodeID        intToID into a reused buffer
+//   buildFacetPath  the Date facet CategoryPath
+//   cloneDoc        cloneDoc of a fully populated doc
+//   nextDoc         all of the above (minus cloning), for
+//                   reference, reading the file itself
+//
+// e.g.: perf/jmh/jmh.sh LineFileDocsBenchmark -p lineDocsFile=/lucenedata/enwiki/enwiki-20120502-lines-1k.txt
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class LineFileDocsBenchmark {
+
+  private final static char SEP = '\t';
+
+  @Param("")
+  public String lineDocsFile;
+
+  // How many lines of the file to cycle through:
+  @Param("10000")
+  public int sampleSize;
+
+  private String[] lines;
+  private String[] dateStrings;
+  private Date[] dates;
+  private Document[] docs;
+
+  private LineFileDocs lineFileDocs;
+  private LineFileDocs.DocState docState;
+  private final Calendar dateCal = Calendar.getInstance();
+  private final SimpleDateFormat simpleDateParser = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
+  private final ParsePosition datePos = new ParsePosition(0);
+  private final char[] idChars = new char[LineFileDocs.ID_LENGTH];
+
+  private int upto;
+  private int nextID;
+
+  @Setup
+  public void setup() throws IOException {
+    if (lineDocsFile.length() == 0) {
+      throw new IllegalArgumentException("pass -p lineDocsFile=/path/to/lines.txt");
+    }
+
+    final List<String> sample = new ArrayList<String>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(lineDocsFile), "UTF-8"), 1 << 16);
+    try {
+      String line;
+      while (sample.size() < sampleSize && (line = reader.readLine()) != null) {
+        if (!line.startsWith("FIELDS_HEADER_INDICATOR")) {
+          sample.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    lines = sample.toArray(new String[sample.size()]);
+
+    lineFileDocs = new LineFileDocs(lineDocsFile, true, false, false, false, false, null, new ArrayList<FacetGroup>());
+    docState = lineFileDocs.newDocState();
+
+    // Inputs for the later stages, so each benchmark only
+    // measures its own stage:
+    dateStrings = new String[lines.length];
+    dates = new Date[lines.length];
+    docs = new Document[lines.length];
+    final LineFileDocs sampleDocs = new LineFileDocs(lineDocsFile, false, false, false, false, false, null, new ArrayList<FacetGroup>());
+    try {
+      for(int i=0;i<lines.length;i++) {
+        final LineFileDocs.DocState state = sampleDocs.newDocState();
+        docs[i] = sampleDocs.nextDoc(state);
+        dateStrings[i] = state.date.stringValue();
+        dates[i] = new Date(state.dateMSec.numericValue().longValue());
+      }
+    } finally {
+      sampleDocs.close();
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    lineFileDocs.close();
+  }
+
+  private int next() {
+    final int i = upto;
+    if (++upto == lines.length) {
+      upto = 0;
+    }
+    return i;
+  }
+
+  // Same splitting as LineFileDocs.nextDoc:
+  @Benchmark
+  public int splitLine() {
+    final String line = lines[next()];
+    final int spot = line.indexOf(SEP);
+    final int spot2 = line.indexOf(SEP, 1 + spot);
+    int spot3 = line.indexOf(SEP, 1 + spot2);
+    if (spot3 == -1) {
+      spot3 = line.length();
+    }
+    final String body = line.substring(1+spot2, spot3);
+    final String title = line.substring(0, spot);
+    final BytesRef titleBytes = new BytesRef(title);
+    final String date = line.substring(1+spot, spot2);
+    return body.length() + titleBytes.length + date.length();
+  }
+
+  @Benchmark
+  public long parseDate() {
+    docState.readState.dateParser.parse(dateStrings[next()]);
+    return docState.readState.dateParser.msec + docState.readState.dateParser.secOfDay;
+  }
+
+  @Benchmark
+  public long parseDateSimpleDateFormat() {
+    final String dateString = dateStrings[next()];
+    datePos.setIndex(0);
+    final Date date = simpleDateParser.parse(dateString, datePos);
+    dateCal.setTime(date);
+    return date.getTime() + dateCal.get(Calendar.HOUR_OF_DAY)*3600 + dateCal.get(Calendar.MINUTE)*60 + dateCal.get(Calendar.SECOND);
+  }
+
+  @Benchmark
+  public char[] encodeID() {
+    LineFileDocs.intToID(nextID++ & Integer.MAX_VALUE, idChars);
+    return idChars;
+  }
+
+  @Benchmark
+  public CategoryPath buildFacetPath() {
+    dateCal.setTime(dates[next()]);
+    return LineFileDocs.dateCategoryPath(dateCal);
+  }
+
+  @Benchmark
+  public Document cloneDoc() {
+    return LineFileDocs.cloneDoc(docs[next()]);
+  }
+
+  @Benchmark
+  public Document nextDoc() throws IOException {
+    return lineFileDocs.nextDoc(docState);
+  }
+}
@@ -0,0 +1,207 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.util.CharArraySet;
+import org.apache.lucene.facet.taxonomy.TaxonomyReader;
+import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.spell.DirectSpellChecker;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Runs the tasks of one category from a .tasks file against
+// a pre-built index, one at a time, so a single scorer
+// change can be A/B tested without the whole SearchPerfTest
+// + python pipeline.  Each category is one value of the
+// "category" param; see perf/jmh/jmh.sh to build and run, eg:
+//
+//   perf/jmh/jmh.sh SearchBenchmark -p indexPath=/l/indices/wikimedium10m -p category=Term,OrHighMed -prof gc
+//
+// Faceted categories (e.g. TermDateFacets) aren't run by
+// default since they also need -p facetGroup=<groupName:
+// ordPolicy:fields>, same as SearchPerfTest's -facetGroup,
+// eg -p category=TermDateFacets -p facetGroup=...
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class SearchBenchmark {
+
+  // Directory holding the index (in index/), same as
+  // SearchPerfTest's -indexPath:
+  @Param("")
+  public String indexPath;
+
+  @Param("MMapDirectory")
+  public String dirImpl;
+
+  @Param("wikinightly.tasks")
+  public String tasksFile;
+
+  @Param({"Term", "AndHighHigh", "OrHighMed", "Fuzzy2", "IntNRQ", "TermDateTimeSort", "TermGroup100"})
+  public String category;
+
+  @Param("StandardAnalyzer")
+  public String analyzer;
+
+  @Param("body")
+  public String field;
+
+  @Param("10")
+  public int topN;
+
+  // How many of the category's tasks to cycle through:
+  @Param("5")
+  public int tasksPerCat;
+
+  @Param("")
+  public String facetGroup;
+
+  private Directory dir;
+  private SearcherManager mgr;
+  private final List<Directory> taxoDirs = new ArrayList<Directory>();
+  private final List<TaxonomyReader> taxoReaders = new ArrayList<TaxonomyReader>();
+  private IndexState indexState;
+  private Task[] tasks;
+  private int nextTask;
+
+  @Setup
+  public void setup() throws Exception {
+    if (indexPath.length() == 0) {
+      throw new IllegalArgumentException("pass -p indexPath=/path/to/index");
+    }
+    final OpenDirectory od = OpenDirectory.get(dirImpl);
+    dir = od.open(new File(indexPath, "index"));
+    mgr = new SearcherManager(dir, new SearcherFactory());
+
+    final List<FacetGroup> facetGroups = new ArrayList<FacetGroup>();
+    Map<String,TaxonomyReader> taxoReadersByGroup = null;
+    if (facetGroup.length() > 0) {
+      final FacetGroup fg = new FacetGroup(facetGroup);
+      facetGroups.add(fg);
+      File taxoPath = new File(indexPath, "facets");
+      if (!taxoPath.exists()) {
+        // Private taxo reader per group:
+        taxoPath = new File(indexPath, "facets." + fg.groupName);
+      }
+      final Directory taxoDir = od.open(taxoPath);
+      taxoDirs.add(taxoDir);
+      final TaxonomyReader tr = new DirectoryTaxonomyReader(taxoDir);
+      taxoReaders.add(tr);
+      taxoReadersByGroup = new HashMap<String,TaxonomyReader>();
+      taxoReadersByGroup.put(fg.groupName, tr);
+    }
+
+    indexState = new IndexState(mgr, taxoReadersByGroup, field, new DirectSpellChecker(), "FastVectorHighlighter", facetGroups);
+
+    final QueryParser queryParser = new QueryParser(Version.LUCENE_50, "body", getAnalyzer(analyzer));
+    queryParser.setLowercaseExpandedTerms(false);
+    final Random random = new Random(0);
+    final TaskParser taskParser = new TaskParser(queryParser, field, new HashMap<Double,Filter>(), topN, random, false);
+
+    final List<Task> loaded = new ArrayList<Task>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(tasksFile), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.startsWith(category + ":")) {
+          loaded.add(taskParser.parseOneTask(line));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if (loaded.isEmpty()) {
+      throw new IllegalArgumentException("no tasks with category " + category + " in " + tasksFile);
+    }
+    Collections.shuffle(loaded, random);
+    tasks = loaded.subList(0, Math.min(tasksPerCat, loaded.size())).toArray(new Task[0]);
+  }
+
+  private static Analyzer getAnalyzer(String analyzer) {
+    if (analyzer.equals("StandardAnalyzer")) {
+      return new StandardAnalyzer(Version.LUCENE_50);
+    } else if (analyzer.equals("StandardAnalyzerNoStopWords")) {
+      return new StandardAnalyzer(Version.LUCENE_50, CharArraySet.EMPTY_SET);
+    } else if (analyzer.equals("EnglishAnalyzer")) {
+      return new EnglishAnalyzer(Version.LUCENE_50);
+    } else {
+      throw new IllegalArgumentException("unknown analyzer " + analyzer);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    mgr.close();
+    for(TaxonomyReader tr : taxoReaders) {
+      tr.close();
+    }
+    for(Directory taxoDir : taxoDirs) {
+      taxoDir.close();
+    }
+    dir.close();
+  }
+
+  // Runs the next task of the category; the clone is
+  // included in the measured time, but is tiny next to
+  // the search itself:
+  @Benchmark
+  public int search() throws IOException {
+    final Task task = tasks[nextTask].clone();
+    if (++nextTask == tasks.length) {
+      nextTask = 0;
+    }
+    task.go(indexState);
+    return task.totalHitCount;
+  }
+}
@@ -0,0 +1,60 @@
+#!/bin/bash
+
+# Builds and runs the JMH benchmarks in perf/jmh.  These live
+# apart from perf/*.java since they need JMH on the
+# classpath (competition.py compiles perf/*.java without it);
+# they are still in package perf so they can use the
+# package-private harness classes (TaskParser, IndexState,
+# LineFileDocs...).
+#
+# Usage (from the luceneutil checkout):
+#
+#   perf/jmh/jmh.sh [benchmark regexp] [JMH options]
+#
+# e.g.:
+#
+#   perf/jmh/jmh.sh SearchBenchmark -p indexPath=/l/indices/wikimedium10m -p category=Term,OrHighMed
+#
+# By default the gc and stack profilers are on (set
+# PROFILERS to change that, e.g. PROFILERS="" for none),
+# and results are written as JSON to $RESULTS
+# (jmh-results.json).
+
+# try to make the script Windows-friendly, if running from Cygwin
+if [ `uname -o` = "Cygwin" ]; then
+  CLASSPATH_SEP=";"
+else
+  CLASSPATH_SEP=":"
+fi
+
+# You must set $LUCENE_HOME to /path/to/checkout/lucene:
+LUCENE_HOME=${LUCENE_HOME:-/l/trunk/lucene}
+
+# ... $HDR_HISTOGRAM to HdrHistogram's jar or src dir:
+HDR_HISTOGRAM=${HDR_HISTOGRAM:-/l/HdrHistogram/src}
+
+# ... and $JMH_HOME to a dir holding jmh-core,
+# jmh-generator-annprocess, jopt-simple and commons-math3
+# jars:
+JMH_HOME=${JMH_HOME:-/l/jmh}
+
+PROFILERS=${PROFILERS-"-prof gc -prof stack"}
+RESULTS=${RESULTS:-jmh-results.json}
+
+BUILD=perf/jmh/build
+
+CLASSPATH=$LUCENE_HOME/build/core/classes/java,$LUCENE_HOME/build/misc/classes/java,$LUCENE_HOME/build/facet/classes/java,$LUCENE_HOME/build/highlighter/classes/java,$LUCENE_HOME/build/test-framework/classes/java,$LUCENE_HOME/build/queryparser/classes/java,$LUCENE_HOME/build/suggest/classes/java,$LUCENE_HOME/build/analysis/common/classes/java,$LUCENE_HOME/build/grouping/classes/java,$LUCENE_HOME/build/sandbox/classes/java,$LUCENE_HOME/build/codecs/classes/java,$HDR_HISTOGRAM
+for jar in $JMH_HOME/*.jar; do
+  CLASSPATH=$CLASSPATH,$jar
+done
+
+CLASSPATH=`echo $CLASSPATH | tr "," "$CLASSPATH_SEP"`
+
+rm -rf $BUILD
+mkdir -p $BUILD
+
+# JMH's annotation processor (found on the classpath)
+# generates the benchmark harness classes:
+$JAVA_HOME/bin/javac -source 1.7 -target 1.7 -cp $CLASSPATH -d $BUILD perf/*.java perf/jmh/*.java || exit 1
+
+$JAVA_HOME/bin/java -cp $BUILD$CLASSPATH_SEP$CLASSPATH org.openjdk.jmh.Main -rf json -rff $RESULTS $PROFILERS "$@"
@@ -39,7 +39,19 @@ sys.setcheckinterval(10)
 # We don't create cyclic garbage, and we want no hiccups:
 gc.disable()
 
-MAX_BYTES = 70
+# Each request is: int length, long requestID, UTF-8 task text
+# (length counts the requestID and the text); each response
+# is: long requestID, byte status, int totalHitCount, long
+# queueTimeNS, long serviceTimeNS.  See perf/RemoteTaskSource.java:
+REQUEST_HEADER = struct.Struct('>iq')
+RESPONSE = struct.Struct('>qbiqq')
+
+# Response status:
+STATUS_OK = 0
+STATUS_LATE = 1
+# >= this means the server dropped the task without running it
+# (rejected, expired or shed):
+STATUS_REJECTED = 2
 
 # TODO
 #   - generalize this to send requests via http too
@@ -83,6 +95,8 @@ class Results:
     self.fOut = open(savFile, 'wb')
 
   def add(self, taskString, totalHitCount, timestamp, latencyMS, queueTimeMS):
+    # Record format stores the task length in one byte:
+    taskString = taskString[:255]
     self.current.write(struct.pack('fffIB', timestamp, latencyMS, queueTimeMS, totalHitCount, len(taskString)))
     self.current.write(taskString)
     if self.current.tell() >= 64*1024:
@@ -118,10 +132,12 @@ class SendTasks:
     t.start()
 
     self.taskID = 0
+    self.droppedCount = 0
+    self.lateCount = 0
 
   def send(self, startTime, task):
     self.sent[self.taskID] = (startTime, task)
-    self.queue.put(task)
+    self.queue.put(REQUEST_HEADER.pack(8+len(task), self.taskID) + task)
     self.taskID += 1
 
   def gatherResponses(self):
@@ -142,12 +158,10 @@ class SendTasks:
     
     while True:
       result = ''
-      while len(result) < 30:
-        result = result + self.sock.recv(30 - len(result))
-      taskID, totalHitCount, queueTimeMS = result.split(':')
-      taskID = int(taskID)
-      totalHitCount = int(totalHitCount)
-      queueTimeMS = float(queueTimeMS)
+      while len(result) < RESPONSE.size:
+        result = result + self.sock.recv(RESPONSE.size - len(result))
+      taskID, status, totalHitCount, queueTimeNS, serviceTimeNS = RESPONSE.unpack(result)
+      queueTimeMS = queueTimeNS/1000000.0
       endTime = time.time()
       intSec = int(endTime)
       if intSec != lastSec:
@@ -164,6 +178,11 @@ class SendTasks:
         print 'WARNING: ignore bad return taskID=%s' % taskID
         continue
       del self.sent[taskID]
+      if status >= STATUS_REJECTED:
+        self.droppedCount += 1
+        continue
+      if status == STATUS_LATE:
+        self.lateCount += 1
       latencyMS = (endTime-taskStartTime)*1000
       queueTimeStats.add(queueTimeMS)
       totalTimeStats.add(latencyMS)
@@ -178,14 +197,16 @@ class SendTasks:
         pctDone = 100.0*(now - startTime) / self.runTimeSec
         if pctDone > 100.0:
           pctDone = 100.0
-        self.out.write('%6.1f s: %5.1f%%: %5.1f qps in; %5.1f qps out; %6.1f/%6.1f ms [%d, %d]\n' % \
+        self.out.write('%6.1f s: %5.1f%%: %5.1f qps in; %5.1f qps out; %6.1f/%6.1f ms [%d, %d]; %d dropped, %d late\n' % \
                        (now - startTime, pctDone,
                         self.taskID/(now-startTime),
                         actualQPSStats.get(),
                         totalTimeStats.get(),
                         queueTimeStats.get(),
                         self.queue.qsize(),
-                        len(self.sent)))
+                        len(self.sent),
+                        self.droppedCount,
+                        self.lateCount))
         #self.out.flush()
         lastPrint = now
                   
@@ -241,11 +262,7 @@ def run(tasksFile, serverHost, serverPort, meanQPS, numTasksPerCat, runTimeSec,
     l = l.strip()
     if l == '':
       continue
-    s = l
-    if len(s) > MAX_BYTES:
-      raise RuntimeError('task is > %d bytes: %s' % (MAX_BYTES, l))
-    s = s + ((MAX_BYTES-len(s))*' ')
-    taskStrings.append(s)
+    taskStrings.append(l)
 
   r = random.Random(0)
   r.shuffle(taskStrings)